@@ -0,0 +1,80 @@
+package songbook.bench;
+
+import songbook.server.Server;
+import songbook.server.Templates;
+import songbook.song.IndexDatabase;
+import songbook.song.IndexDirectory;
+import songbook.song.SongDatabase;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares search latency and memory of index directory implementations against the same
+ * synthetic catalog. The index is built once on disk then opened with each directory type.
+ * <p>
+ * Arguments: [song count] [directory types, comma separated] [iterations]
+ * <p>
+ * Resident memory is shared by all types run in the same JVM, run one type per
+ * invocation to compare it.
+ */
+public class DirectoryBenchmark {
+
+    private static final String[] QUERIES = { "love", "baby night", "river OR moon", "été", "rock AND roll", "\"sweet home\"" };
+
+    public static void main(String[] args) throws Exception {
+        int songCount = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        String types = args.length > 1 ? args[1] : "nio,mmap,heap";
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+
+        Templates.setTemplatesPath(Paths.get("src/dist/web/templates"));
+        Path root = Files.createTempDirectory("songbook-bench");
+        new SyntheticSongs(42).write(root.resolve("songs"), songCount);
+        SongDatabase songDb = new SongDatabase(root.resolve("songs"));
+        new IndexDatabase(root.resolve("index"), IndexDirectory.NIO, songDb, 1000, 100, 0).close();
+
+        System.out.println("Searching " + songCount + " songs, " + iterations + " queries per directory type");
+        for (String type : types.split(",")) {
+            IndexDirectory directoryType = IndexDirectory.parse(type);
+            long rssBefore = residentKB();
+            long openStart = System.nanoTime();
+            // no search cache to measure the directory
+            IndexDatabase indexDb = new IndexDatabase(root.resolve("index"), directoryType, songDb, 1000, 100, 0);
+            long openMillis = (System.nanoTime() - openStart) / 1_000_000;
+
+            Random random = new Random(7);
+            long[] latencies = ListingBenchmark.measure(iterations, () -> {
+                StringBuilder out = new StringBuilder();
+                String query = QUERIES[random.nextInt(QUERIES.length)];
+                indexDb.search(query, Collections.emptyMap(), null, 50).write(out, Server.MIME_TEXT_HTML);
+                return out.length();
+            });
+            System.gc();
+            long heapKB = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() / 1024;
+            ListingBenchmark.report(directoryType.toString(), latencies);
+            System.out.println(String.format("%-14s open %d ms, heap used %d KB, resident +%d KB",
+                    "", openMillis, heapKB, residentKB() - rssBefore));
+            indexDb.close();
+        }
+    }
+
+    /** Resident set size from /proc (Linux only), 0 when not available. */
+    private static long residentKB() {
+        try {
+            List<String> lines = Files.readAllLines(Paths.get("/proc/self/status"));
+            for (String line : lines) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+        } catch (Exception e) {
+            // not available
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,164 @@
+package songbook.bench;
+
+import org.apache.lucene.document.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import songbook.chordpro.Song;
+import songbook.chordpro.SongParser;
+import songbook.server.ChannelUtil;
+import songbook.server.MimeParser;
+import songbook.server.Server;
+import songbook.server.Templates;
+import songbook.server.TemplatesAccess;
+import songbook.song.SongDatabase;
+import songbook.song.SongRenderer;
+import songbook.song.SongUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * JMH benchmarks of the code run for each request: song rendering, parsing, indexing and
+ * reading, templates printing and content negotiation.
+ * <p>
+ * Songs are the bundled ones followed by a synthetic catalog, each invocation uses the next
+ * song. The catalog size is given with '-p synthetic=count' and the bundled songs folder
+ * with '-p songDir=folder' (run from the project folder).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HotPathBenchmark {
+
+    /** Accept headers of browsers, the console and API clients */
+    private static final String[] ACCEPTS = {
+            "text/html,application/xhtml+xml,application/xml;q=0.9,image/webp,*/*;q=0.8",
+            "text/song",
+            "text/plain;q=0.5, text/song",
+            "application/json",
+            "*/*"
+    };
+
+    @Param("data/songs")
+    public String songDir;
+
+    @Param("1000")
+    public int synthetic;
+
+    private String[] songs;
+
+    private byte[][] songBytes;
+
+    private String[] titles;
+
+    private String[] fragments;
+
+    private int next = 0;
+
+    @Setup
+    public void setup() throws IOException {
+        Templates.setTemplatesPath(Paths.get("src/dist/web/templates"));
+
+        List<String> corpus = new ArrayList<>();
+        Path folder = Paths.get(songDir);
+        if (Files.isDirectory(folder)) {
+            List<Path> paths;
+            try (Stream<Path> files = Files.list(folder)) {
+                paths = files.filter(path -> path.toString().endsWith(SongDatabase.SONG_EXTENSION)).sorted().collect(Collectors.toList());
+            }
+            for (Path path : paths) {
+                corpus.add(new String(Files.readAllBytes(path), StandardCharsets.UTF_8));
+            }
+        }
+        SyntheticSongs generator = new SyntheticSongs(42);
+        for (int i = 0; i < synthetic; i++) {
+            corpus.add(generator.song(i));
+        }
+        if (corpus.isEmpty()) throw new IllegalStateException("No songs in " + folder + " and no synthetic songs");
+
+        songs = corpus.toArray(new String[corpus.size()]);
+        songBytes = new byte[songs.length][];
+        titles = new String[songs.length];
+        fragments = new String[songs.length];
+        for (int i = 0; i < songs.length; i++) {
+            songBytes[i] = songs[i].getBytes(StandardCharsets.UTF_8);
+            titles[i] = SongUtils.getTitle(songs[i]);
+            fragments[i] = SongRenderer.writeHtml(new StringBuilder(), songs[i]).toString();
+        }
+    }
+
+    private int nextSong() {
+        int index = next;
+        next = next + 1 == songs.length ? 0 : next + 1;
+        return index;
+    }
+
+    @Benchmark
+    public StringBuilder renderHtml() {
+        String song = songs[nextSong()];
+        return SongRenderer.writeHtml(new StringBuilder(song.length() * 2), song);
+    }
+
+    @Benchmark
+    public Song parseSong() throws IOException {
+        int index = nextSong();
+        return new SongParser().parse("song-" + index, new StringReader(songs[index]));
+    }
+
+    @Benchmark
+    public Document indexSong() {
+        return SongUtils.indexSong(songs[nextSong()]);
+    }
+
+    @Benchmark
+    public String readSong() throws IOException {
+        return ChannelUtil.getStringContents(Channels.newChannel(new ByteArrayInputStream(songBytes[nextSong()])));
+    }
+
+    /** Song page as served when the song fragment is cached. */
+    @Benchmark
+    public StringBuilder printSongPage() throws IOException {
+        int index = nextSong();
+        StringBuilder out = new StringBuilder();
+        Templates.header(out, titles[index] + " - My SongBook", "user");
+        Templates.viewSong(out, "song-" + index, fragments[index], "user");
+        Templates.footer(out);
+        return out;
+    }
+
+    /** Song template alone, printed with its variables. */
+    @Benchmark
+    public StringBuilder printTemplate() throws IOException {
+        int index = nextSong();
+        return TemplatesAccess.print(new StringBuilder(), "viewSong.html", "songId", "song-" + index, "song", fragments[index], "role", "user");
+    }
+
+    @Benchmark
+    public String negotiateMimeType() {
+        String accept = ACCEPTS[nextSong() % ACCEPTS.length];
+        return MimeParser.bestMatch(accept, Server.MIME_TEXT_SONG, Server.MIME_TEXT_PLAIN, Server.MIME_TEXT_HTML);
+    }
+}
@@ -0,0 +1,96 @@
+package songbook.bench;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.search.*;
+import org.apache.lucene.store.FSDirectory;
+import songbook.server.Server;
+import songbook.server.Templates;
+import songbook.song.IndexDatabase;
+import songbook.song.IndexDirectory;
+import songbook.song.SongDatabase;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Compares the latency of rendering results lists from stored fields (previous implementation)
+ * and from doc values, on a synthetic catalog.
+ * <p>
+ * Arguments: [song count] [hits per list] [iterations]
+ */
+public class ListingBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int songCount = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int hitsPerList = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+
+        Templates.setTemplatesPath(Paths.get("src/dist/web/templates"));
+        Path root = Files.createTempDirectory("songbook-bench");
+        new SyntheticSongs(42).write(root.resolve("songs"), songCount);
+        // no search cache to measure rendering
+        IndexDatabase indexDb = new IndexDatabase(root.resolve("index"), IndexDirectory.getDefault(), new SongDatabase(root.resolve("songs")), 1000, 100, 0);
+
+        System.out.println("Listing " + hitsPerList + " of " + songCount + " songs sorted by title, " + iterations + " iterations");
+        try (DirectoryReader reader = DirectoryReader.open(FSDirectory.open(root.resolve("index")))) {
+            IndexSearcher searcher = new IndexSearcher(reader);
+            report("stored fields", measure(iterations, () -> storedFieldsListing(searcher, hitsPerList)));
+        }
+        report("doc values", measure(iterations, () -> docValuesListing(indexDb, hitsPerList)));
+        indexDb.close();
+    }
+
+    /** Listing as it was done before doc values: a stored document loaded per hit. */
+    private static int storedFieldsListing(IndexSearcher searcher, int hitsPerList) throws Exception {
+        StringBuilder out = new StringBuilder();
+        TopFieldDocs topFieldDocs = searcher.search(new MatchAllDocsQuery(), hitsPerList, new Sort(new SortField("title", SortField.Type.STRING)));
+        Templates.startItems(out);
+        for (ScoreDoc hit : topFieldDocs.scoreDocs) {
+            Document doc = searcher.doc(hit.doc);
+            String artists = Stream.of(doc.getValues("artist")).collect(Collectors.joining(", "));
+            Templates.songItem(out, doc.get("id"), doc.get("title"), artists);
+        }
+        Templates.endItems(out);
+        return out.length();
+    }
+
+    private static int docValuesListing(IndexDatabase indexDb, int hitsPerList) throws Exception {
+        StringBuilder out = new StringBuilder();
+        indexDb.search(null, Collections.emptyMap(), null, hitsPerList).write(out, Server.MIME_TEXT_HTML);
+        return out.length();
+    }
+
+    interface Listing {
+        int run() throws Exception;
+    }
+
+    /** Runs listing iterations times after a warm up and returns sorted latencies in microseconds. */
+    static long[] measure(int iterations, Listing listing) throws Exception {
+        int blackhole = 0;
+        for (int i = 0; i < iterations; i++) {
+            blackhole += listing.run();
+        }
+        long[] latencies = new long[iterations];
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            blackhole += listing.run();
+            latencies[i] = (System.nanoTime() - start) / 1000;
+        }
+        if (blackhole == 42) System.out.print("");
+        Arrays.sort(latencies);
+        return latencies;
+    }
+
+    static void report(String name, long[] latencies) {
+        long total = 0;
+        for (long latency : latencies) total += latency;
+        System.out.println(String.format("%-14s mean %8d us  p50 %8d us  p99 %8d us",
+                name, total / latencies.length, latencies[latencies.length / 2], latencies[latencies.length * 99 / 100]));
+    }
+}
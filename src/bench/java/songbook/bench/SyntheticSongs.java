@@ -0,0 +1,75 @@
+package songbook.bench;
+
+import songbook.song.SongDatabase;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Generates a catalog of random songs with the same structure as real ones
+ * (title, header properties, verses of chords and lyrics lines).
+ */
+public class SyntheticSongs {
+
+    private static final String[] WORDS = {
+            "love", "baby", "night", "road", "heart", "river", "blue", "moon", "rock", "roll",
+            "dance", "fire", "rain", "home", "train", "summer", "lonely", "sweet", "wild", "dream",
+            "finistère", "été", "cœur", "chanson", "mer", "ciel", "amour", "soleil", "rêve", "nuit"
+    };
+
+    private static final String[] CHORDS = {
+            "C", "D", "E", "F", "G", "A", "B", "Am", "Em", "Dm", "G7", "C7", "F#m", "Bb", "Eb", "Asus4", "Dmaj7", "C/G"
+    };
+
+    private final Random random;
+
+    public SyntheticSongs(long seed) {
+        random = new Random(seed);
+    }
+
+    /** Returns the contents of a random song. */
+    public String song(int index) {
+        StringBuilder song = new StringBuilder();
+        song.append(words(1 + random.nextInt(4))).append(' ').append(index).append('\n');
+        song.append("artist: Artist ").append(random.nextInt(Math.max(10, index / 20 + 1))).append('\n');
+        if (random.nextBoolean()) song.append("album: ").append(words(2)).append('\n');
+        song.append("key: ").append(CHORDS[random.nextInt(7)]).append('\n');
+        song.append("year: ").append(1950 + random.nextInt(70)).append('\n');
+
+        int verses = 2 + random.nextInt(4);
+        for (int verse = 0; verse < verses; verse++) {
+            song.append('\n');
+            if (verse == 1) song.append("Chorus:\n");
+            int lines = 4 + random.nextInt(4);
+            for (int line = 0; line < lines; line++) {
+                for (int chord = 0; chord < 1 + random.nextInt(4); chord++) {
+                    song.append(CHORDS[random.nextInt(CHORDS.length)]).append("    ");
+                }
+                song.append('\n').append(words(4 + random.nextInt(8))).append('\n');
+            }
+            if (verse > 1 && random.nextInt(3) == 0) song.append("chorus\n");
+        }
+        return song.toString();
+    }
+
+    /** Writes count songs as '.song' files in songDir. */
+    public void write(Path songDir, int count) throws IOException {
+        Files.createDirectories(songDir);
+        for (int i = 0; i < count; i++) {
+            Path path = songDir.resolve("synthetic-" + i + SongDatabase.SONG_EXTENSION);
+            Files.write(path, song(i).getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private String words(int count) {
+        StringBuilder words = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) words.append(' ');
+            words.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return words.toString();
+    }
+}
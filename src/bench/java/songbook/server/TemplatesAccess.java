@@ -0,0 +1,13 @@
+package songbook.server;
+
+import java.io.IOException;
+
+/**
+ * Gives benchmarks access to template printing, which is protected in {@link Templates}.
+ */
+public class TemplatesAccess {
+
+    public static <A extends Appendable> A print(A out, String templateName, CharSequence... vars) throws IOException {
+        return Templates.print(out, templateName, vars);
+    }
+}
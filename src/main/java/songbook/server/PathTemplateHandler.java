@@ -3,6 +3,7 @@ package songbook.server;
 import io.undertow.server.HttpHandler;
 import io.undertow.server.HttpServerExchange;
 import io.undertow.util.PathTemplateMatcher;
+import io.undertow.util.URLUtils;
 
 import java.util.Map;
 
@@ -21,8 +22,9 @@ public class PathTemplateHandler implements HttpHandler {
         // Uses request URI to match path to avoid decoding.
         PathTemplateMatcher.PathMatchResult<HttpHandler> match = pathTemplateMatcher.match(exchange.getRequestURI());
         if (match != null) {
+            // parameters are decoded like query parameters ('+' is a space)
             for (Map.Entry<String, String> entry : match.getParameters().entrySet()) {
-                exchange.addQueryParam(entry.getKey(), entry.getValue());
+                exchange.addQueryParam(entry.getKey(), URLUtils.decode(entry.getValue(), "utf-8", true, new StringBuilder()));
             }
             match.getValue().handleRequest(exchange);
         } else {
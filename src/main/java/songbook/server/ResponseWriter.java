@@ -0,0 +1,158 @@
+package songbook.server;
+
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.Headers;
+import org.xnio.IoUtils;
+import org.xnio.Pooled;
+import org.xnio.channels.Channels;
+import org.xnio.channels.StreamSinkChannel;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writer which encodes UTF-8 text straight into a buffer of the connection pool and writes
+ * it to the response each time it's full, closing it ends the response.
+ * <p>
+ * Responses which fit in one buffer are sent with their length. Writes block, the exchange
+ * must be dispatched to a worker thread. When writing to the response fails (the client is
+ * gone), next writes fail at once and closing drops the connection.
+ */
+public class ResponseWriter extends Writer {
+
+    private final HttpServerExchange exchange;
+
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    /** High surrogate at the end of a write, waiting for its low surrogate */
+    private final CharBuffer pending = CharBuffer.allocate(2);
+
+    private Pooled<ByteBuffer> pooled;
+
+    private ByteBuffer buffer;
+
+    private StreamSinkChannel channel;
+
+    private boolean closed = false;
+
+    private boolean failed = false;
+
+    public ResponseWriter(HttpServerExchange exchange) {
+        this.exchange = exchange;
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        write(CharBuffer.wrap(new char[] { (char) c }));
+    }
+
+    @Override
+    public void write(char[] chars, int offset, int length) throws IOException {
+        write(CharBuffer.wrap(chars, offset, length));
+    }
+
+    @Override
+    public void write(String text, int offset, int length) throws IOException {
+        write(CharBuffer.wrap(text, offset, offset + length));
+    }
+
+    @Override
+    public Writer append(CharSequence text) throws IOException {
+        write(CharBuffer.wrap(text == null ? "null" : text));
+        return this;
+    }
+
+    @Override
+    public Writer append(CharSequence text, int start, int end) throws IOException {
+        write(CharBuffer.wrap(text == null ? "null" : text, start, end));
+        return this;
+    }
+
+    private void write(CharBuffer chars) throws IOException {
+        if (closed) throw new IOException("Response writer is closed");
+        if (failed) throw new IOException("Response can't be written");
+        while (pending.position() > 0 && chars.hasRemaining()) {
+            pending.put(chars.get()).flip();
+            encode(pending, false);
+            pending.compact();
+        }
+        encode(chars, false);
+        if (chars.hasRemaining()) pending.put(chars.get());
+    }
+
+    private void encode(CharBuffer chars, boolean endOfInput) throws IOException {
+        while (encoder.encode(chars, buffer(), endOfInput).isOverflow()) {
+            writeBuffer();
+        }
+    }
+
+    private ByteBuffer buffer() {
+        if (buffer == null) {
+            pooled = exchange.getConnection().getBufferPool().allocate();
+            buffer = pooled.getResource();
+            buffer.clear();
+        }
+        return buffer;
+    }
+
+    /** Writes the buffer to the response. */
+    private void writeBuffer() throws IOException {
+        if (channel == null) {
+            channel = exchange.getResponseChannel();
+            if (channel == null) throw new IOException("Response has already been started");
+        }
+        buffer.flip();
+        try {
+            Channels.writeBlocking(channel, buffer);
+        } catch (IOException e) {
+            failed = true;
+            throw e;
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (closed || failed) return;
+        if (buffer != null && buffer.position() > 0) writeBuffer();
+        if (channel != null) Channels.flushBlocking(channel);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        try {
+            if (failed) {
+                IoUtils.safeClose(exchange.getConnection());
+                return;
+            }
+            pending.flip();
+            encode(pending, true);
+            CoderResult result;
+            while ((result = encoder.flush(buffer())).isOverflow()) writeBuffer();
+            if (result.isError()) result.throwException();
+
+            if (channel == null) {
+                exchange.getResponseHeaders().put(Headers.CONTENT_LENGTH, buffer.position());
+            }
+            writeBuffer();
+            channel.shutdownWrites();
+            Channels.flushBlocking(channel);
+        } finally {
+            closed = true;
+            if (pooled != null) {
+                pooled.free();
+                pooled = null;
+                buffer = null;
+            }
+        }
+    }
+}
@@ -2,32 +2,65 @@ package songbook.server;
 
 import io.undertow.Handlers;
 import io.undertow.Undertow;
+import io.undertow.io.IoCallback;
+import io.undertow.io.Sender;
 import io.undertow.server.HttpHandler;
 import io.undertow.server.HttpServerExchange;
+import io.undertow.server.handlers.BlockingHandler;
 import io.undertow.server.handlers.Cookie;
 import io.undertow.server.handlers.CookieImpl;
 import io.undertow.server.handlers.ExceptionHandler;
 import io.undertow.server.handlers.GracefulShutdownHandler;
+import io.undertow.server.handlers.encoding.AllowedContentEncodings;
+import io.undertow.server.handlers.encoding.ContentEncodingRepository;
+import io.undertow.server.handlers.encoding.DeflateEncodingProvider;
+import io.undertow.server.handlers.encoding.EncodingHandler;
+import io.undertow.server.handlers.encoding.GzipEncodingProvider;
 import io.undertow.server.handlers.resource.FileResourceManager;
 import io.undertow.util.*;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.StringField;
+import org.apache.lucene.facet.FacetResult;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.search.suggest.Lookup.LookupResult;
+import org.xnio.IoUtils;
+import songbook.song.CompressedRendition;
+import songbook.song.Durability;
+import songbook.song.FileSongStore;
+import songbook.song.ImportReport;
 import songbook.song.IndexDatabase;
+import songbook.song.IndexDirectory;
+import songbook.song.IndexReport;
+import songbook.song.PackedSongStore;
+import songbook.song.SearchPage;
 import songbook.song.SongDatabase;
+import songbook.song.SongImporter;
+import songbook.song.SongRenderer;
+import songbook.song.SongStore;
+import songbook.song.SongSuggester;
+import songbook.song.SongWatcher;
 import songbook.song.SongUtils;
 
 import java.io.IOException;
+import java.io.Writer;
 import java.math.BigInteger;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Date;
 import java.util.Deque;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
@@ -50,9 +83,21 @@ public class Server {
 	public static final String MIME_TEXT_HTML = "text/html";
 	public static final String MIME_TEXT_PLAIN = "text/plain";
 	public static final String MIME_TEXT_SONG = "text/song";
+	public static final String MIME_APPLICATION_JSON = "application/json";
 
 	public static final String SESSION_KEY = "SessionKey";
 
+	public static final HttpString LINK = new HttpString("Link");
+
+	/** Maximum number of hits in a page of search results. */
+	public static final int MAX_PAGE_SIZE = 500;
+
+	/** Prefix of song page renditions, followed by role */
+	public static final String HTML_RENDITION = "html-";
+
+	public static final int DEFAULT_SUGGESTIONS = 10;
+	public static final int MAX_SUGGESTIONS = 50;
+
 	public static final AttachmentKey<String> ADMIN_KEY = AttachmentKey.create(String.class);
 
 	private Logger logger;
@@ -61,17 +106,28 @@ public class Server {
 
 	private IndexDatabase indexDb;
 
+	private SongWatcher songWatcher;
+
 	private boolean showKeyCreationAlert = false;
 
 	private String administratorKey = null;
 
 	private String userKey = null;
 
+	private Durability defaultDurability = Durability.SYNC;
+
 	public void start() {
 		logger = Logger.getLogger("Songbook");
 
 		Path dataRoot = getDataRoot();
 		Templates.setTemplatesPath(getWebRoot().resolve("templates"));
+		if (!"false".equals(System.getenv("WATCH_TEMPLATES"))) {
+			try {
+				Templates.watch();
+			} catch (IOException e) {
+				error("Can't watch templates in " + getWebRoot().resolve("templates"), e);
+			}
+		}
 
 		try {
 			if (!Files.exists(dataRoot)) Files.createDirectories(dataRoot);
@@ -87,19 +143,42 @@ public class Server {
 
 		try {
 			// initializes songDb
-			songDb = new SongDatabase(getSongsPath());
+			songDb = new SongDatabase(createSongStore(), getIntEnv("SONG_CACHE_KB", 8 * 1024) * 1024L, getIntEnv("RENDITION_CACHE_KB", 16 * 1024) * 1024L,
+					getIntEnv("FRAGMENT_CACHE_KB", 16 * 1024) * 1024L);
+			// song pages are compressed when songs are written
+			for (String role : new String[] { "user", "admin" }) {
+				songDb.addRendition(HTML_RENDITION + role, (id, contents) -> htmlSong(new StringBuilder(), role, id, contents, htmlFragment(id, contents), null).toString().getBytes(StandardCharsets.UTF_8));
+			}
+			// song pages are printed with templates
+			Templates.addReloadListener(songDb.getRenditionCache()::clear);
 		} catch (IOException e) {
-			error("Can't initialize songs database in " + getSongsPath(), e);
+			error("Can't initialize songs database", e);
 		}
 
 		Path index = getDataRoot().resolve("index");
 		try {
 			// initializes index.
-			indexDb = new IndexDatabase(index, songDb);
+			defaultDurability = Durability.parse(System.getenv("INDEX_DURABILITY"), Durability.SYNC);
+			IndexDirectory directoryType = IndexDirectory.parse(System.getenv("INDEX_DIRECTORY"));
+			info("Index stored with " + directoryType + " directory");
+			indexDb = new IndexDatabase(index, directoryType, songDb, getIntEnv("INDEX_COMMIT_WINDOW", 1000), getIntEnv("INDEX_COMMIT_MAX_PENDING", 100),
+					getIntEnv("SEARCH_CACHE_KB", 16 * 1024) * 1024L);
 		} catch (IOException e) {
 			error("Can't initialize index in " +index , e);
 		}
 
+		// indexes songs copied in songs folder
+		if (songDb.getStore() instanceof FileSongStore && !"false".equals(System.getenv("WATCH_SONGS"))) {
+			FileSongStore store = (FileSongStore) songDb.getStore();
+			Path songDir = store.getSongDir();
+			try {
+				songWatcher = new SongWatcher(store.getSongDirs(), songDb, indexDb, getIntEnv("WATCH_SONGS_DEBOUNCE", 500), 1000);
+				info("Watching songs in " + songDir);
+			} catch (IOException e) {
+				error("Can't watch songs in " + songDir, e);
+			}
+		}
+
 		// creates server
 		Undertow undertow = createServer(pathTemplateHandler());
 		undertow.start();
@@ -117,15 +196,24 @@ public class Server {
 		HttpHandler crossOriginHandler = allowCrossOriginHandler(sessionHandler);
 		// Third Handler exception
 		HttpHandler exceptionHandler = exceptionHandler(crossOriginHandler);
+		// Compresses responses which aren't already compressed
+		HttpHandler encodingHandler = new EncodingHandler(exceptionHandler, new ContentEncodingRepository()
+				.addEncodingHandler(CompressedRendition.GZIP, new GzipEncodingProvider(), 50)
+				.addEncodingHandler(CompressedRendition.DEFLATE, new DeflateEncodingProvider(), 10));
 		// Second Handler log
-		HttpHandler logHandler = log(exceptionHandler);
+		HttpHandler logHandler = log(encodingHandler);
+		// Dispatches to worker threads, handlers use blocking IO (index, files and streamed responses)
+		HttpHandler blockingHandler = new BlockingHandler(logHandler);
 		// First Handler GracefulShutdown
-		GracefulShutdownHandler gracefulShutdownHandler = Handlers.gracefulShutdown(logHandler);
+		GracefulShutdownHandler gracefulShutdownHandler = Handlers.gracefulShutdown(blockingHandler);
 
 		Undertow.Builder builder = Undertow.builder();
 		final int port = getPort();
 		final String host = getHost();
 		builder.addHttpListener(port, host);
+		// responses are encoded in pooled buffers, direct by default with enough memory
+		String directBuffers = System.getenv("DIRECT_BUFFERS");
+		if (directBuffers != null) builder.setDirectBuffers(Boolean.parseBoolean(directBuffers));
 		builder.setHandler(gracefulShutdownHandler);
 
 		info("Listens on '" + host + ":" + port + "'");
@@ -246,10 +334,15 @@ public class Server {
 		pathHandler.add("/search/{query}", this::searchPage);
 		pathHandler.add("/search", this::searchPage);
 
+		pathHandler.add("/facets/{name}", this::listFacetPage);
+
+		pathHandler.add("/suggest", this::suggestPage);
+
 		pathHandler.add("/artists/{artist}", this::songsByArtistPage);
 		pathHandler.add("/artists", this::listArtistPage);
 
 		pathHandler.add("/songs/{id}", this::restSong);
+		pathHandler.add("/import", adminAccess(this::importSongs));
 
 		pathHandler.add("/consoleApi", this::consoleApiPage);
 
@@ -280,7 +373,6 @@ public class Server {
 		// Serves song
 		exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "text/html");
 
-		StringBuilder out = new StringBuilder();
 		String role = getRole(exchange);
 
 		if (id != null && !id.isEmpty()) {
@@ -288,17 +380,18 @@ public class Server {
 			String songContents = songDb.getSongContents(id);
 			if (songContents == null) throw new SongNotFoundException(id);
 			String title = SongUtils.getTitle(songContents);
-			Templates.header(out, "Edit - " + title + " - My SongBook", role);
-			Templates.editSong(out, id, songContents, role);
-			Templates.footer(out);
-
-			exchange.getResponseSender().send(out.toString());
+			try (Writer out = responseWriter(exchange)) {
+				Templates.header(out, "Edit - " + title + " - My SongBook", role);
+				Templates.editSong(out, id, songContents, role);
+				Templates.footer(out);
+			}
 
 		} else {
-			Templates.header(out, "Create Song - My SongBook", role);
-			Templates.editSong(out, "", Templates.newSong(new StringBuilder()), role);
-			Templates.footer(out);
-			exchange.getResponseSender().send(out.toString());
+			try (Writer out = responseWriter(exchange)) {
+				Templates.header(out, "Create Song - My SongBook", role);
+				Templates.editSong(out, "", Templates.newSong(new StringBuilder()), role);
+				Templates.footer(out);
+			}
 		}
 	}
 
@@ -317,28 +410,37 @@ public class Server {
 			title = query + " - " + title;
 		}
 
-		StringBuilder out = new StringBuilder();
 		String mimeType = MimeParser.bestMatch(getHeader(exchange, Headers.ACCEPT), MIME_TEXT_SONG, MIME_TEXT_PLAIN, MIME_TEXT_HTML);
+		SearchPage page;
+		try {
+			page = indexDb.search(query, getDrillDowns(exchange), getParameter(exchange, "after"), getPageSize(exchange));
+		} catch (ParseException | IllegalArgumentException e) {
+			throw ServerException.BAD_REQUEST;
+		}
+		String next = nextPageHref(exchange, page.getNextCursor());
 		switch (mimeType) {
 			case MIME_TEXT_HTML:
 				exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "text/html");
+				try (Writer out = responseWriter(exchange)) {
+					String role = getRole(exchange);
+					Templates.header(out, title, role);
+					if (showKeyCreationAlert) {
+						Templates.alertKeyCreation(out, administratorKey, exchange.getRequestPath());
+					}
+					Templates.startSearch(out, role);
+					page.write(out, mimeType);
+					if (next != null) Templates.nextItems(out, next);
+					Templates.endSearch(out, role);
 
-				String role = getRole(exchange);
-				Templates.header(out, title, role);
-				if (showKeyCreationAlert) {
-					Templates.alertKeyCreation(out, administratorKey, exchange.getRequestPath());
+					Templates.footer(out);
 				}
-				StringBuilder result = new StringBuilder();
-				indexDb.search(query, result, mimeType);
-				Templates.search(out,result, role);
-
-				Templates.footer(out);
 				break;
 			default:
-				indexDb.search(query, out, mimeType);
+				try (Writer out = responseWriter(exchange)) {
+					page.write(out, mimeType);
+				}
 				break;
 		}
-		exchange.getResponseSender().send(out.toString());
 	}
 
 	private void restSong(final HttpServerExchange exchange) throws Exception {
@@ -366,37 +468,143 @@ public class Server {
 		}
 		String id = URLEncoder.encode(getParameter(exchange, "id"), "utf-8");
 
-		// Serves song
-		String songContents = songDb.getSongContents(id);
-		if (songContents == null) throw new SongNotFoundException(id);
-
 		String mimeType = MimeParser.bestMatch(getHeader(exchange, Headers.ACCEPT), MIME_TEXT_SONG, MIME_TEXT_PLAIN, MIME_TEXT_HTML);
-		exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, mimeType);
 		switch (mimeType) {
 			case MIME_TEXT_HTML:
-				exchange.getResponseSender().send(htmlSong(exchange, id, songContents, exchange.getRequestPath()));
+				exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, mimeType);
+				String encoding = getPrecompressedEncoding(exchange);
+				if (encoding != null && !showKeyCreationAlert) {
+					CompressedRendition rendition = songDb.getRendition(id, HTML_RENDITION + getRole(exchange));
+					if (rendition == null) throw new SongNotFoundException(id);
+					sendRendition(exchange, rendition, encoding);
+				} else {
+					String songContents = songDb.getSongContents(id);
+					if (songContents == null) throw new SongNotFoundException(id);
+					// renders before the page is streamed, errors can still be answered
+					CharSequence fragment = htmlFragment(id, songContents);
+					String alertPath = showKeyCreationAlert ? exchange.getRequestPath() : null;
+					try (Writer out = responseWriter(exchange)) {
+						htmlSong(out, getRole(exchange), id, songContents, fragment, alertPath);
+					}
+				}
 				break;
 			default:
 			case MIME_TEXT_PLAIN:
 			case MIME_TEXT_SONG:
-				exchange.getResponseSender().send(songContents);
+				rawSong(exchange, id, mimeType);
 				break;
 		}
 
 		logger.info("Serve Song " + id);
 	}
 
-	private String htmlSong(HttpServerExchange exchange, String id, String songData, String path) {
-		StringBuilder out = new StringBuilder();
+	/**
+	 * Serves song file with content hash as ETag and last modification time, answers
+	 * 304 when client already has this version. File is transferred without copy or
+	 * sent precompressed.
+	 */
+	private void rawSong(final HttpServerExchange exchange, String id, String mimeType) throws Exception {
+		String hash = songDb.getContentHash(id);
+		long lastModified = songDb.getLastModified(id);
+		if (hash == null || lastModified < 0) throw new SongNotFoundException(id);
+
+		// each encoding is a different representation
+		String encoding = getPrecompressedEncoding(exchange);
+		ETag etag = new ETag(false, encoding == null ? hash : hash + "-" + encoding);
+		Date lastModifiedDate = new Date(lastModified);
+		exchange.getResponseHeaders().put(Headers.ETAG, etag.toString());
+		exchange.getResponseHeaders().put(Headers.LAST_MODIFIED, DateUtils.toDateString(lastModifiedDate));
+
+		// If-Modified-Since is ignored when If-None-Match is present
+		boolean modified = exchange.getRequestHeaders().contains(Headers.IF_NONE_MATCH) ?
+				ETagUtils.handleIfNoneMatch(exchange, etag, true) : DateUtils.handleIfModifiedSince(exchange, lastModifiedDate);
+		if (!modified) {
+			exchange.setResponseCode(StatusCodes.NOT_MODIFIED);
+			exchange.endExchange();
+			return;
+		}
+
+		exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, mimeType);
+		if (encoding != null) {
+			CompressedRendition rendition = songDb.getRendition(id, SongDatabase.RAW_RENDITION);
+			if (rendition == null) throw new SongNotFoundException(id);
+			sendRendition(exchange, rendition, encoding);
+			return;
+		}
+
+		exchange.getResponseHeaders().put(Headers.VARY, Headers.ACCEPT_ENCODING_STRING);
+		SongStore store = songDb.getStore();
+		if (store instanceof FileSongStore) {
+			FileChannel channel;
+			try {
+				channel = ((FileSongStore) store).read(id);
+			} catch (NoSuchFileException e) {
+				throw new SongNotFoundException(id);
+			}
+			exchange.setResponseContentLength(channel.size());
+			exchange.getResponseSender().transferFrom(channel, new IoCallback() {
+				@Override
+				public void onComplete(HttpServerExchange exchange, Sender sender) {
+					IoUtils.safeClose(channel);
+					IoCallback.END_EXCHANGE.onComplete(exchange, sender);
+				}
+
+				@Override
+				public void onException(HttpServerExchange exchange, Sender sender, IOException exception) {
+					IoUtils.safeClose(channel);
+					IoCallback.END_EXCHANGE.onException(exchange, sender, exception);
+				}
+			});
+		} else {
+			ByteBuffer contents;
+			try {
+				contents = store.contents(id);
+			} catch (NoSuchFileException e) {
+				throw new SongNotFoundException(id);
+			}
+			exchange.setResponseContentLength(contents.remaining());
+			exchange.getResponseSender().send(contents);
+		}
+	}
+
+	/**
+	 * Returns the encoding negotiated by the encoding handler if it's one of the
+	 * precompressed renditions encodings, null otherwise.
+	 */
+	private String getPrecompressedEncoding(HttpServerExchange exchange) {
+		AllowedContentEncodings encodings = exchange.getAttachment(AllowedContentEncodings.ATTACHMENT_KEY);
+		if (encodings == null || encodings.isIdentity() || encodings.isNoEncodingsAllowed()) return null;
+		String encoding = encodings.getCurrentContentEncoding();
+		return CompressedRendition.GZIP.equals(encoding) || CompressedRendition.DEFLATE.equals(encoding) ? encoding : null;
+	}
+
+	/** Sends stored compressed bytes, the encoding handler doesn't compress them again. */
+	private void sendRendition(HttpServerExchange exchange, CompressedRendition rendition, String encoding) {
+		exchange.getResponseHeaders().put(Headers.CONTENT_ENCODING, encoding);
+		exchange.getResponseHeaders().put(Headers.VARY, Headers.ACCEPT_ENCODING_STRING);
+		exchange.setResponseContentLength(rendition.encodedLength(encoding));
+		exchange.getResponseSender().send(rendition.encoded(encoding));
+	}
+
+	/** Returns the cached song fragment, or renders songData if the song can't be read anymore. */
+	private CharSequence htmlFragment(String id, String songData) {
+		String fragment = songDb.getHtmlFragment(id);
+		return fragment != null ? fragment : SongRenderer.writeHtml(new StringBuilder(), songData);
+	}
+
+	/**
+	 * Renders song page around the song fragment, alertPath is given to show the
+	 * administrator key creation alert.
+	 */
+	private <A extends Appendable> A htmlSong(A out, String role, String id, String songData, CharSequence fragment, String alertPath) throws IOException {
 		// Todo use a songmark object to extract title and then generate html
 		String title = SongUtils.getTitle(songData);
-		String role = getRole(exchange);
-		Templates.header(out, title + " - My SongBook", getRole(exchange));
-		if (showKeyCreationAlert) Templates.alertKeyCreation(out, administratorKey, path);
-		Templates.viewSong(out, id, SongUtils.writeHtml(new StringBuilder(), songData), role);
+		Templates.header(out, title + " - My SongBook", role);
+		if (alertPath != null) Templates.alertKeyCreation(out, administratorKey, alertPath);
+		Templates.viewSong(out, id, fragment, role);
 
 		Templates.footer(out);
-		return out.toString();
+		return out;
 	}
 
 	private void createSong(final HttpServerExchange exchange) throws Exception {
@@ -411,15 +619,23 @@ public class Server {
 			throw new MissingArgumentsException("title", "artist");
 		}
 
+		Durability durability = getDurability(exchange);
 		String id = songDb.generateId(title, artist);
+		try {
+			// writes song before indexing it to get its fingerprint
+			WritableByteChannel songChannel = songDb.writeChannelForSong(id, durability);
+			if (songChannel == null) throw new ServerException(500, "Can't write song");
+
+			ChannelUtil.writeStringContents(songData, songChannel);
+		} catch (Exception e) {
+			// the id stays reserved otherwise
+			songDb.releaseId(id);
+			throw e;
+		}
+
 		// prepares new document
 		document.add(new StringField("id", id, Field.Store.YES));
-		indexDb.addOrUpdateDocument(document);
-
-		WritableByteChannel songChannel = songDb.writeChannelForSong(id);
-		if (songChannel == null) throw new ServerException(500, "Can't write song");
-
-		ChannelUtil.writeStringContents(songData, songChannel);
+		indexDb.addOrUpdateDocument(document, durability);
 
 		exchange.getResponseSender().send(id);
 	}
@@ -435,15 +651,17 @@ public class Server {
 		// Verify that song exists
 		if (!songDb.exists(id)) throw ServerException.NOT_FOUND;
 
-		// prepares new document
-		document.add(new StringField("id", id, Field.Store.YES));
-		indexDb.addOrUpdateDocument(document);
-
-		WritableByteChannel songChannel = songDb.writeChannelForSong(id);
+		// writes song before indexing it to get its fingerprint
+		Durability durability = getDurability(exchange);
+		WritableByteChannel songChannel = songDb.writeChannelForSong(id, durability);
 		if (songChannel == null) throw new ServerException(500, "Can't write song");
 
 		ChannelUtil.writeStringContents(songData, songChannel);
 
+		// prepares new document
+		document.add(new StringField("id", id, Field.Store.YES));
+		indexDb.addOrUpdateDocument(document, durability);
+
 		exchange.getResponseSender().send(id);
 	}
 
@@ -462,18 +680,18 @@ public class Server {
 		String title = indexDb.getTitle(id);
 
 		// removes document from index
-		indexDb.removeDocument(id);
+		indexDb.removeDocument(id, getDurability(exchange));
 
 		String mimeType = MimeParser.bestMatch(getHeader(exchange, Headers.ACCEPT), MIME_TEXT_SONG, MIME_TEXT_PLAIN, MIME_TEXT_HTML);
 		exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, mimeType);
 		switch (mimeType) {
 			case MIME_TEXT_HTML:
-				StringBuilder out = new StringBuilder();
-				Templates.header(out, "My SongBook", getRole(exchange));
-				// show home page with message
-				Templates.alertSongRemovedSuccessfully(out, title == null ? id : title);
-				Templates.footer(out);
-				exchange.getResponseSender().send(out.toString());
+				try (Writer out = responseWriter(exchange)) {
+					Templates.header(out, "My SongBook", getRole(exchange));
+					// show home page with message
+					Templates.alertSongRemovedSuccessfully(out, title == null ? id : title);
+					Templates.footer(out);
+				}
 				break;
 			default:
 			case MIME_TEXT_PLAIN:
@@ -488,119 +706,234 @@ public class Server {
             throw ServerException.METHOD_NOT_ALLOWED;
         }
         String artist = getParameter(exchange, "artist");
-        StringBuilder out = new StringBuilder();
-        String role = getRole(exchange);
-        Templates.header(out, "Artists", role);
-        StringBuilder result = new StringBuilder();
-        indexDb.songsByArtist(artist, result, MIME_TEXT_HTML);
-        Templates.search(out, result, role);
-
-        Templates.footer(out);
-
+        SearchPage page;
+        try {
+            page = indexDb.songsByArtist(artist, getParameter(exchange, "after"), getPageSize(exchange));
+        } catch (IllegalArgumentException e) {
+            throw ServerException.BAD_REQUEST;
+        }
+        String next = nextPageHref(exchange, page.getNextCursor());
         exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, MIME_TEXT_HTML);
-        exchange.getResponseSender().send(out.toString());
+        try (Writer out = responseWriter(exchange)) {
+            String role = getRole(exchange);
+            Templates.header(out, "Artists", role);
+            Templates.startSearch(out, role);
+            page.write(out, MIME_TEXT_HTML);
+            if (next != null) Templates.nextItems(out, next);
+            Templates.endSearch(out, role);
+
+            Templates.footer(out);
+        }
     }
 
 	private void listArtistPage(final HttpServerExchange exchange) throws Exception {
 		if (!exchange.getRequestMethod().equals(Methods.GET)) {
 			throw ServerException.METHOD_NOT_ALLOWED;
 		}
-		StringBuilder out = new StringBuilder();
-        String role = getRole(exchange);
-        Templates.header(out, "Artists", role);
-        StringBuilder result = new StringBuilder();
-        indexDb.listArtists(result, MIME_TEXT_HTML);
-        Templates.search(out, result, role);
-
-		Templates.footer(out);
-
+		// counts before the page is streamed, errors can still be answered
+		FacetResult artists = indexDb.facetCounts("artist", null, Collections.emptyMap());
 		exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, MIME_TEXT_HTML);
-		exchange.getResponseSender().send(out.toString());
+		try (Writer out = responseWriter(exchange)) {
+			String role = getRole(exchange);
+			Templates.header(out, "Artists", role);
+			Templates.startSearch(out, role);
+			indexDb.writeArtists(artists, out, MIME_TEXT_HTML);
+			Templates.endSearch(out, role);
+
+			Templates.footer(out);
+		}
 	}
 
 
-	private void consoleApiPage(final HttpServerExchange exchange) throws ServerException {
+	private void listFacetPage(final HttpServerExchange exchange) throws Exception {
 		if (!exchange.getRequestMethod().equals(Methods.GET)) {
 			throw ServerException.METHOD_NOT_ALLOWED;
 		}
-		StringBuilder out = new StringBuilder();
-		Templates.header(out, "Song Console Api", getRole(exchange));
-		Templates.consoleApi(out);
-		Templates.footer(out);
+		String name = getParameter(exchange, "name");
+		String query = getParameter(exchange, "query");
+		String mimeType = MimeParser.bestMatch(getHeader(exchange, Headers.ACCEPT), MIME_TEXT_HTML, MIME_TEXT_PLAIN);
+		// parses query and counts before the page is streamed, errors can still be answered
+		FacetResult facet;
+		try {
+			facet = indexDb.facetCounts(name, query, getDrillDowns(exchange));
+		} catch (ParseException e) {
+			throw ServerException.BAD_REQUEST;
+		}
+		exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, mimeType);
+		try (Writer out = responseWriter(exchange)) {
+			switch (mimeType) {
+				case MIME_TEXT_HTML:
+					String role = getRole(exchange);
+					Templates.header(out, name + " - My SongBook", role);
+					Templates.startSearch(out, role);
+					indexDb.writeFacet(facet, query, out, mimeType);
+					Templates.endSearch(out, role);
+
+					Templates.footer(out);
+					break;
+				default:
+					indexDb.writeFacet(facet, query, out, mimeType);
+					break;
+			}
+		}
+	}
 
-		exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, MIME_TEXT_HTML);
-		exchange.getResponseSender().send(out.toString());
+	/** Imports songs from a zip or tar archive posted as request body and answers a report per entry. */
+	private void importSongs(final HttpServerExchange exchange) throws Exception {
+		if (!exchange.getRequestMethod().equals(Methods.POST)) {
+			throw ServerException.METHOD_NOT_ALLOWED;
+		}
+		ImportReport report = new SongImporter(songDb, indexDb).importSongs(exchange.getInputStream());
+		// songs read before an archive error are imported, the report tells which
+		if (report.getError() != null) exchange.setResponseCode(StatusCodes.BAD_REQUEST);
+
+		String mimeType = MimeParser.bestMatch(getHeader(exchange, Headers.ACCEPT), MIME_APPLICATION_JSON, MIME_TEXT_PLAIN);
+		exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, mimeType + "; charset=utf-8");
+		try (Writer out = responseWriter(exchange)) {
+			report.write(out, mimeType);
+		}
 	}
 
-	private void signinPage(final HttpServerExchange exchange) throws ServerException {
+	private void suggestPage(final HttpServerExchange exchange) throws Exception {
 		if (!exchange.getRequestMethod().equals(Methods.GET)) {
 			throw ServerException.METHOD_NOT_ALLOWED;
 		}
-		StringBuilder out = new StringBuilder();
-		Templates.header(out, "SongBook Admin Page", getRole(exchange));
-		Templates.signin(out);
-		Templates.footer(out);
+		String query = getParameter(exchange, "q");
+		String type = getParameter(exchange, "type");
+		if (type != null && !type.equals(SongSuggester.TITLE) && !type.equals(SongSuggester.ARTIST)) {
+			throw ServerException.BAD_REQUEST;
+		}
+		int count = DEFAULT_SUGGESTIONS;
+		String countParameter = getParameter(exchange, "count");
+		if (countParameter != null) {
+			try {
+				count = Math.max(1, Math.min(MAX_SUGGESTIONS, Integer.parseInt(countParameter)));
+			} catch (NumberFormatException e) {
+				throw ServerException.BAD_REQUEST;
+			}
+		}
+
+		List<LookupResult> suggestions = query != null && !query.trim().isEmpty() ? indexDb.suggest(query, type, count) : Collections.emptyList();
 
+		String mimeType = MimeParser.bestMatch(getHeader(exchange, Headers.ACCEPT), MIME_APPLICATION_JSON, MIME_TEXT_PLAIN);
+		exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, mimeType + "; charset=utf-8");
+		try (Writer out = responseWriter(exchange)) {
+			indexDb.writeSuggestions(suggestions, out, mimeType);
+		}
+	}
+
+	private void consoleApiPage(final HttpServerExchange exchange) throws ServerException, IOException {
+		if (!exchange.getRequestMethod().equals(Methods.GET)) {
+			throw ServerException.METHOD_NOT_ALLOWED;
+		}
 		exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, MIME_TEXT_HTML);
-		exchange.getResponseSender().send(out.toString());
+		try (Writer out = responseWriter(exchange)) {
+			Templates.header(out, "Song Console Api", getRole(exchange));
+			Templates.consoleApi(out);
+			Templates.footer(out);
+		}
 	}
 
-	private void adminPage(final HttpServerExchange exchange) throws ServerException {
+	private void signinPage(final HttpServerExchange exchange) throws ServerException, IOException {
 		if (!exchange.getRequestMethod().equals(Methods.GET)) {
 			throw ServerException.METHOD_NOT_ALLOWED;
 		}
-		StringBuilder out = new StringBuilder();
-		Templates.header(out, "SongBook Admin Page", getRole(exchange));
-		Templates.admin(out);
-		Templates.footer(out);
+		exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, MIME_TEXT_HTML);
+		try (Writer out = responseWriter(exchange)) {
+			Templates.header(out, "SongBook Admin Page", getRole(exchange));
+			Templates.signin(out);
+			Templates.footer(out);
+		}
+	}
 
+	private void adminPage(final HttpServerExchange exchange) throws ServerException, IOException {
+		if (!exchange.getRequestMethod().equals(Methods.GET)) {
+			throw ServerException.METHOD_NOT_ALLOWED;
+		}
 		exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, MIME_TEXT_HTML);
-		exchange.getResponseSender().send(out.toString());
+		try (Writer out = responseWriter(exchange)) {
+			Templates.header(out, "SongBook Admin Page", getRole(exchange));
+			Templates.admin(out);
+			Templates.footer(out);
+		}
 	}
 
 	private void adminCommand(final HttpServerExchange exchange) throws Exception {
 		if (!exchange.getRequestMethod().equals(Methods.GET)) {
 			throw ServerException.METHOD_NOT_ALLOWED;
 		}
-		StringBuilder out = new StringBuilder();
-
-		Templates.header(out, "Administration - My SongBook", getRole(exchange));
-
 		String section = getParameter(exchange, "section");
 		String command = getParameter(exchange, "command");
-		switch (section) {
-			case "index":
-				switch (command) {
-					case "reset":
-						try {
-							long start = System.currentTimeMillis();
-							songDb.clearCache();
-							indexDb.analyzeSongs();
+		// page is streamed, errors must be found before
+		if (!section.equals("index") && !section.equals("songs")) {
+			throw ServerException.BAD_REQUEST;
+		}
 
-							long end = System.currentTimeMillis();
-							logger.info("Opened index in " + (end - start) + " milliseconds.");
-							Templates.alertSongReindexed(out);
+		exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, MIME_TEXT_HTML);
+		try (Writer out = responseWriter(exchange)) {
+			Templates.header(out, "Administration - My SongBook", getRole(exchange));
+
+			switch (section) {
+				case "index":
+					switch (command) {
+						case "reset":
+							try {
+								songDb.clearCache();
+								IndexReport report = indexDb.analyzeSongs();
+								logger.info("Reindexed " + report);
+								Templates.alertSongReindexed(out);
+								Templates.admin(out);
+							} catch (IOException e) {
+								error("Can't initialize index in " + getDataRoot().resolve("index"), e);
+								Templates.alertIndexingError(out);
+								Templates.admin(out);
+							}
+							break;
+						case "stats":
+							Templates.alertIndexStatistics(out, songDb.getSongCount() + " songs, index generation " + indexDb.getGeneration() + ", search cache: " + indexDb.getSearchCache() +
+									", song cache: " + songDb.getCache() + ", fragment cache: " + songDb.getFragmentCache() +
+									", rendition cache: " + songDb.getRenditionCache());
 							Templates.admin(out);
+							break;
+						case "reconcile":
+							try {
+								IndexReport report = indexDb.reconcile();
+								logger.info("Reconciled " + report);
+								Templates.alertSongReindexed(out);
+								Templates.admin(out);
+							} catch (IOException e) {
+								error("Can't reconcile index in " + getDataRoot().resolve("index"), e);
+								Templates.alertIndexingError(out);
+								Templates.admin(out);
+							}
+							break;
+						default:
+							Templates.alertCommandNotSupported(out);
+							Templates.admin(out);
+							break;
+					}
+					break;
+				case "songs":
+					SongStore store = songDb.getStore();
+					if (command.equals("shard") && store instanceof FileSongStore && ((FileSongStore) store).isSharded()) {
+						try {
+							long start = System.currentTimeMillis();
+							int count = ((FileSongStore) store).moveToShards();
+							String message = count + " songs moved to shards in " + (System.currentTimeMillis() - start) + " ms";
+							logger.info(message);
+							Templates.alertIndexStatistics(out, message);
 						} catch (IOException e) {
-							error("Can't initialize index in " + getDataRoot().resolve("index"), e);
+							error("Can't move songs to shards", e);
 							Templates.alertIndexingError(out);
-							Templates.admin(out);
 						}
-						break;
-					default:
+					} else {
 						Templates.alertCommandNotSupported(out);
-						Templates.admin(out);
-						break;
-				}
-				break;
-			default:
-				throw ServerException.BAD_REQUEST;
-
+					}
+					Templates.admin(out);
+					break;
+			}
+			Templates.footer(out);
 		}
-		Templates.footer(out);
-
-		exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, MIME_TEXT_HTML);
-		exchange.getResponseSender().send(out.toString());
 	}
 
 	private Path getWebRoot() {
@@ -613,22 +946,46 @@ public class Server {
 		return Paths.get(dataRoot == null ? DEFAULT_DATA_ROOT : dataRoot);
 	}
 
+	/**
+	 * Creates the song store given by SONG_STORE environment variable: 'files' (default)
+	 * for one file per song in SONGS_ROOT or 'packed' for segment files in PACKED_SONGS_ROOT.
+	 */
+	private SongStore createSongStore() throws IOException {
+		final String type = System.getenv("SONG_STORE");
+		if (type == null || type.equals("files")) {
+			boolean sharded = "sharded".equals(System.getenv("SONG_LAYOUT"));
+			if (sharded) info("Songs stored in shards in " + getSongsPath());
+			return new FileSongStore(getSongsPath(), getIntEnv("SONG_COMMIT_WINDOW", 1000), getIntEnv("SONG_COMMIT_MAX_PENDING", 100), sharded);
+		} else if (type.equals("packed")) {
+			final String packedRoot = System.getenv("PACKED_SONGS_ROOT");
+			Path packedPath = packedRoot == null ? getDataRoot().resolve("packed") : Paths.get(packedRoot);
+			info("Songs stored in segments in " + packedPath);
+			return new PackedSongStore(packedPath, getIntEnv("PACKED_SEGMENT_MB", 64) * 1024L * 1024L, 0.5, 60_000,
+					getIntEnv("SONG_COMMIT_WINDOW", 1000), getIntEnv("SONG_COMMIT_MAX_PENDING", 100));
+		}
+		throw new IllegalArgumentException("Unknown song store '" + type + "'");
+	}
+
 	private Path getSongsPath() {
 		final String songRoot = System.getenv("SONGS_ROOT");
 		return songRoot == null ? getDataRoot().resolve("songs") : Paths.get(songRoot);
 	}
 
 	private int getPort() {
-		final String portString = System.getenv("PORT");
-		int port = DEFAULT_PORT;
-		if (portString != null) {
+		return getIntEnv("PORT", DEFAULT_PORT);
+	}
+
+	private static int getIntEnv(String name, int defaultValue) {
+		final String valueString = System.getenv(name);
+		int value = defaultValue;
+		if (valueString != null) {
 			try {
-				port = Integer.parseInt(portString);
+				value = Integer.parseInt(valueString);
 			} catch (NumberFormatException e) {
 				// doesn't matter;
 			}
 		}
-		return port;
+		return value;
 	}
 
 	private String getHost() {
@@ -746,14 +1103,78 @@ public class Server {
 		return deque == null ? null : deque.element();
 	}
 
+	/**
+	 * Durability for song and index writes, from 'durability' parameter (sync, grouped or deferred)
+	 * or INDEX_DURABILITY environment variable.
+	 */
+	protected Durability getDurability(HttpServerExchange exchange) throws ServerException {
+		try {
+			return Durability.parse(getParameter(exchange, "durability"), defaultDurability);
+		} catch (IllegalArgumentException e) {
+			throw ServerException.BAD_REQUEST;
+		}
+	}
+
+	/** Header property values from 'facet' parameters ('name:value'), to filter songs. */
+	protected Map<String, String> getDrillDowns(HttpServerExchange exchange) throws ServerException {
+		Map<String, String> drillDowns = new HashMap<>();
+		for (String facet : getParameters(exchange, "facet")) {
+			int indexOfCol = facet.indexOf(":");
+			if (indexOfCol <= 0) throw ServerException.BAD_REQUEST;
+			drillDowns.put(facet.substring(0, indexOfCol).toLowerCase().trim(), facet.substring(indexOfCol + 1).trim());
+		}
+		return drillDowns;
+	}
+
+	/** Page size from 'size' parameter, limited to MAX_PAGE_SIZE. */
+	protected int getPageSize(HttpServerExchange exchange) throws ServerException {
+		String size = getParameter(exchange, "size");
+		if (size == null || size.isEmpty()) return IndexDatabase.DEFAULT_PAGE_SIZE;
+		try {
+			return Math.max(1, Math.min(MAX_PAGE_SIZE, Integer.parseInt(size)));
+		} catch (NumberFormatException e) {
+			throw ServerException.BAD_REQUEST;
+		}
+	}
+
+	/**
+	 * Creates the link to the next page of results (same request with 'after' parameter)
+	 * and adds it as 'Link' header. Returns null if there is no next page.
+	 */
+	protected String nextPageHref(HttpServerExchange exchange, String cursor) {
+		if (cursor == null) return null;
+		StringBuilder href = new StringBuilder(exchange.getRequestURI()).append('?');
+		for (String parameter : exchange.getQueryString().split("&")) {
+			if (!parameter.isEmpty() && !parameter.startsWith("after=")) {
+				href.append(parameter).append('&');
+			}
+		}
+		href.append("after=").append(cursor);
+		exchange.getResponseHeaders().put(LINK, "<" + href + ">; rel=\"next\"");
+		return href.toString();
+	}
+
+	/**
+	 * Creates a writer which streams UTF-8 text to the response through pooled buffers,
+	 * closing it ends the exchange. Exchange must be dispatched to a worker thread.
+	 */
+	protected Writer responseWriter(HttpServerExchange exchange) {
+		return new ResponseWriter(exchange);
+	}
+
+	/**
+	 * First value of a query or path parameter or null. Query parameters are decoded by
+	 * the server, path parameters by {@link PathTemplateHandler}.
+	 */
 	protected String getParameter(HttpServerExchange exchange, String parameter) {
-        StringBuilder sb = new StringBuilder();
-        Deque<String> deque = exchange.getQueryParameters().get(parameter);
-        if (deque != null) {
-            URLUtils.decode(deque.element(), "utf-8", true, sb);
-            return sb.toString();
-        }
-        return null;
+		Deque<String> deque = exchange.getQueryParameters().get(parameter);
+		return deque == null ? null : deque.element();
+	}
+
+	/** All values of a parameter, decoded like {@link #getParameter}. */
+	protected List<String> getParameters(HttpServerExchange exchange, String parameter) {
+		Deque<String> deque = exchange.getQueryParameters().get(parameter);
+		return deque == null ? Collections.emptyList() : new ArrayList<>(deque);
 	}
 
 	private HttpHandler adminAccess(HttpHandler handler) {
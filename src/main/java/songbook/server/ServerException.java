@@ -19,6 +19,9 @@ package songbook.server;
 import io.undertow.server.HttpServerExchange;
 import io.undertow.util.StatusCodes;
 
+import java.io.IOException;
+import java.io.Writer;
+
 /**
  * ServerException used by exception handler
  */
@@ -41,18 +44,17 @@ public class ServerException extends Exception {
         this.code = code;
     }
 
-    public void serveError(String role, HttpServerExchange exchange) {
+    public void serveError(String role, HttpServerExchange exchange) throws IOException {
         exchange.setResponseCode(code);
 
-        StringBuilder out = new StringBuilder();
-        Templates.header(out, Integer.toString(code), role);
-        errorText(out);
-        Templates.footer(out);
-
-        exchange.getResponseSender().send(out.toString());
+        try (Writer out = new ResponseWriter(exchange)) {
+            Templates.header(out, Integer.toString(code), role);
+            errorText(out);
+            Templates.footer(out);
+        }
     }
 
-    public void errorText(StringBuilder out) {
+    public void errorText(Appendable out) throws IOException {
         out.append(getMessage());
     }
 }
@@ -2,6 +2,8 @@ package songbook.server;
 
 import io.undertow.util.StatusCodes;
 
+import java.io.IOException;
+
 /**
  * Song not found.
  */
@@ -16,7 +18,7 @@ public class SongNotFoundException extends ServerException {
     }
 
     @Override
-    public void errorText(StringBuilder out) {
+    public void errorText(Appendable out) throws IOException {
         Templates.alertSongDoesNotExist(out, id);
     }
 }
@@ -0,0 +1,82 @@
+package songbook.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Template compiled into literal parts separated by '${name}' variables.
+ * <p>
+ * It's printed in one pass with values given as name, value pairs. Variables without
+ * value are printed as they are, null values are printed as empty.
+ */
+class Template {
+
+    private final String[] literals;
+
+    private final String[] variables;
+
+    private Template(String[] literals, String[] variables) {
+        this.literals = literals;
+        this.variables = variables;
+    }
+
+    static Template compile(String content) {
+        List<String> literals = new ArrayList<>();
+        List<String> variables = new ArrayList<>();
+        int start = 0;
+        while (true) {
+            int open = content.indexOf("${", start);
+            int close = open < 0 ? -1 : content.indexOf('}', open + 2);
+            if (close < 0) break;
+            literals.add(content.substring(start, open));
+            variables.add(content.substring(open + 2, close));
+            start = close + 1;
+        }
+        literals.add(content.substring(start));
+        return new Template(literals.toArray(new String[literals.size()]), variables.toArray(new String[variables.size()]));
+    }
+
+    void print(Appendable out, CharSequence... vars) throws IOException {
+        print(out, 0, variables.length, vars);
+    }
+
+    /**
+     * Prints the part of template before (or after) the first occurrence of a variable.
+     * Without this variable the whole template is before it.
+     */
+    void printPart(Appendable out, String partVariable, boolean before, CharSequence... vars) throws IOException {
+        int part = variables.length;
+        for (int i = 0; i < variables.length; i++) {
+            if (variables[i].equals(partVariable)) {
+                part = i;
+                break;
+            }
+        }
+        if (before) {
+            print(out, 0, part, vars);
+        } else if (part < variables.length) {
+            print(out, part + 1, variables.length, vars);
+        }
+    }
+
+    /** Prints literals from 'from' to 'to' included with variables between them. */
+    private void print(Appendable out, int from, int to, CharSequence[] vars) throws IOException {
+        for (int i = from; i < to; i++) {
+            out.append(literals[i]);
+            printVariable(out, variables[i], vars);
+        }
+        out.append(literals[to]);
+    }
+
+    private static void printVariable(Appendable out, String name, CharSequence[] vars) throws IOException {
+        for (int i = 0; i < vars.length; i += 2) {
+            if (name.contentEquals(vars[i])) {
+                CharSequence value = vars[i + 1];
+                if (value != null) out.append(value);
+                return;
+            }
+        }
+        out.append("${").append(name).append('}');
+    }
+}
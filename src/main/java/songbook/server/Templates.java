@@ -2,155 +2,228 @@ package songbook.server;
 
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.HashMap;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Stream;
 
 /**
  * Contains functions that generate a string from a template
  * Created by j5r on 01/05/2014.
+ * <p>
+ * Templates are compiled once, they're compiled again after a change only when the
+ * templates folder is watched.
  */
 public class Templates {
 
-    private final static Map<String, TemplateCache> cache = new HashMap<>();
+    /** Compiled templates, replaced as a whole when templates change */
+    private static volatile Map<String, Template> cache = new ConcurrentHashMap<>();
 
     private static Path TEMPLATES_PATH = Paths.get("web/templates");
 
+    private static WatchService watchService;
+
+    /** Called when watched templates change */
+    private final static List<Runnable> reloadListeners = new CopyOnWriteArrayList<>();
+
     public static void setTemplatesPath(Path templatesPath) {
-        cache.clear();
         TEMPLATES_PATH = templatesPath;
+        cache = new ConcurrentHashMap<>();
     }
 
-    public static <A extends Appendable> A header(A out, CharSequence title, CharSequence role) {
+    public static <A extends Appendable> A header(A out, CharSequence title, CharSequence role) throws IOException {
         return print(out, "header.html", "title", title, "role", role);
 	}
 
-    public static <A extends Appendable> A footer(A out) {
+    public static <A extends Appendable> A footer(A out) throws IOException {
         return print(out, "footer.html");
 	}
 
-    public static <A extends Appendable> A search(A out, CharSequence searchResult, CharSequence role) {
+    public static <A extends Appendable> A search(A out, CharSequence searchResult, CharSequence role) throws IOException {
         return print(out, "search.html", "searchResult", searchResult, "role", role);
     }
 
-    public static <A extends Appendable> A editSong(A out, CharSequence songId, CharSequence song, CharSequence role) {
+    /** Prints the search template until the results, which can then be streamed. */
+    public static <A extends Appendable> A startSearch(A out, CharSequence role) throws IOException {
+        return printPart(out, "search.html", "searchResult", true, "role", role);
+    }
+
+    /** Prints the search template after the results. */
+    public static <A extends Appendable> A endSearch(A out, CharSequence role) throws IOException {
+        return printPart(out, "search.html", "searchResult", false, "role", role);
+    }
+
+    public static <A extends Appendable> A nextItems(A out, CharSequence href) throws IOException {
+        return print(out, "nextItems.html", "href", href);
+    }
+
+    public static <A extends Appendable> A editSong(A out, CharSequence songId, CharSequence song, CharSequence role) throws IOException {
         return print(out, "editSong.html", "songId", songId, "song", song, "role", role);
     }
 
-    public static <A extends Appendable> A viewSong(A out, CharSequence songId, CharSequence song, CharSequence role) {
+    public static <A extends Appendable> A viewSong(A out, CharSequence songId, CharSequence song, CharSequence role) throws IOException {
         return print(out, "viewSong.html", "songId", songId, "song", song, "role", role);
     }
 
-    public static <A extends Appendable> A newSong(A out) {
+    public static <A extends Appendable> A newSong(A out) throws IOException {
         return print(out, "newSong.song");
     }
 
-    public static <A extends Appendable> A startItems(A out) {
+    public static <A extends Appendable> A startItems(A out) throws IOException {
         return print(out, "startItems.html");
 	}
 
-    public static <A extends Appendable> A songItem(A out, CharSequence songId, CharSequence songTitle, CharSequence songArtist) {
+    public static <A extends Appendable> A songItem(A out, CharSequence songId, CharSequence songTitle, CharSequence songArtist) throws IOException {
         return print(out, "songItem.html", "songId", songId, "songTitle", songTitle, "songArtist", songArtist);
 	}
 
-    public static <A extends Appendable> A artistItem(A out, CharSequence artist, int songCount) {
+    public static <A extends Appendable> A artistItem(A out, CharSequence artist, int songCount) throws IOException {
         return print(out, "artistItem.html", "artist", artist, "songCount", Integer.toString(songCount));
     }
 
-    public static <A extends Appendable> A endItems(A out) {
+    public static <A extends Appendable> A facetItem(A out, CharSequence href, CharSequence value, int songCount) throws IOException {
+        return print(out, "facetItem.html", "href", href, "value", value, "songCount", Integer.toString(songCount));
+    }
+
+    public static <A extends Appendable> A endItems(A out) throws IOException {
         return print(out, "endItems.html");
 	}
 
 
-    public static <A extends Appendable> A signin(A out) {
+    public static <A extends Appendable> A signin(A out) throws IOException {
         return print(out, "signin.html");
     }
 
-    public static <A extends Appendable> A admin(A out) {
+    public static <A extends Appendable> A admin(A out) throws IOException {
         return print(out, "admin.html");
     }
 
-    public static <A extends Appendable> A consoleApi(A out) {
+    public static <A extends Appendable> A consoleApi(A out) throws IOException {
         return print(out, "consoleApi.html");
     }
 
-    public static <A extends Appendable> A alertSongDoesNotExist(A out, CharSequence songId) {
+    public static <A extends Appendable> A alertSongDoesNotExist(A out, CharSequence songId) throws IOException {
         return print(out, "alerts/songDoesNotExist.html", "songId", songId);
 	}
 
-    public static <A extends Appendable> A alertMissingArguments(A out, CharSequence arguments) {
+    public static <A extends Appendable> A alertMissingArguments(A out, CharSequence arguments) throws IOException {
         return print(out, "alerts/songDoesNotExist.html", "arguments", arguments);
 	}
 
-    public static <A extends Appendable> A alertKeyCreation(A out, CharSequence adminSessionKey, CharSequence path) {
+    public static <A extends Appendable> A alertKeyCreation(A out, CharSequence adminSessionKey, CharSequence path) throws IOException {
         return print(out, "alerts/keyCreation.html", "adminSessionKey", adminSessionKey, "path", path);
 	}
 
-    public static <A extends Appendable> A alertSongReindexed(A out) {
+    public static <A extends Appendable> A alertSongReindexed(A out) throws IOException {
         return print(out, "alerts/songReindexed.html");
 	}
 
-    public static <A extends Appendable> A alertAccessForbidden(A out, CharSequence path) {
+    public static <A extends Appendable> A alertIndexStatistics(A out, CharSequence statistics) throws IOException {
+        return print(out, "alerts/indexStatistics.html", "statistics", statistics);
+    }
+
+    public static <A extends Appendable> A alertAccessForbidden(A out, CharSequence path) throws IOException {
         return print(out, "alerts/accessForbidden.html", "path", path);
     }
 
-    public static <A extends Appendable> A alertIndexingError(A out) {
+    public static <A extends Appendable> A alertIndexingError(A out) throws IOException {
         return print(out, "alerts/indexingError.html");
     }
 
-    public static <A extends Appendable> A alertCommandNotSupported(A out) {
+    public static <A extends Appendable> A alertCommandNotSupported(A out) throws IOException {
         return print(out, "alerts/commandNotSupported.html");
     }
 
-    public static <A extends Appendable> A alertSongRemovedSuccessfully(A out, CharSequence songTitle) {
+    public static <A extends Appendable> A alertSongRemovedSuccessfully(A out, CharSequence songTitle) throws IOException {
         return print(out, "alerts/songRemovedSuccessfully.html", "songTitle", songTitle);
     }
 
-    protected static <A extends Appendable> A print(A out, String templateName, CharSequence... vars) {
-        try {
-            String content = getContent(templateName);
-            for (int i = 0; i < vars.length; i += 2) {
-                CharSequence value = vars[i+1];
-                if (value == null) {
-                    value = "";
+    protected static <A extends Appendable> A print(A out, String templateName, CharSequence... vars) throws IOException {
+        getTemplate(templateName).print(out, vars);
+        return out;
+    }
+
+    /**
+     * Prints the part of a template before (or after) a variable.
+     * @param before true to print the part before the variable, false for the part after.
+     */
+    protected static <A extends Appendable> A printPart(A out, String templateName, String partVariable, boolean before, CharSequence... vars) throws IOException {
+        getTemplate(templateName).printPart(out, partVariable, before, vars);
+        return out;
+    }
+
+    /** Adds a listener called after a watched template changed, to drop what was printed with it. */
+    public static void addReloadListener(Runnable listener) {
+        reloadListeners.add(listener);
+    }
+
+    /**
+     * Watches the templates folder and its sub folders, compiled templates are
+     * compiled again when a file changes and swapped in at once.
+     */
+    public static synchronized void watch() throws IOException {
+        if (watchService != null) return;
+        watchService = FileSystems.getDefault().newWatchService();
+        try (Stream<Path> paths = Files.walk(TEMPLATES_PATH)) {
+            for (Path folder : (Iterable<Path>) paths.filter(Files::isDirectory)::iterator) {
+                folder.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            }
+        }
+
+        WatchService service = watchService;
+        Thread thread = new Thread(() -> {
+            try {
+                while (true) {
+                    WatchKey key = service.take();
+                    key.pollEvents();
+                    key.reset();
+                    cache = compileAll(cache.keySet());
+                    reloadListeners.forEach(Runnable::run);
                 }
-                content = content.replace("${" + vars[i] + "}", value);
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                // watcher closed
+            }
+        }, "watch-templates");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Compiles the given templates in a new map, the ones which can't be read are left to next use. */
+    private static Map<String, Template> compileAll(Set<String> templateNames) {
+        Map<String, Template> compiled = new ConcurrentHashMap<>();
+        for (String templateName : templateNames) {
+            try {
+                compiled.put(templateName, compile(templateName));
+            } catch (IOException e) {
+                // removed or being written, compiled again when used
             }
-            out.append(content);
-        } catch (IOException e) {
-            e.printStackTrace();
         }
-        return out;
+        return compiled;
     }
 
-    private static class TemplateCache {
-        long time;
-        String content;
-
-        public TemplateCache(long time, String content) {
-            this.time = time;
-            this.content = content;
+    private static Template getTemplate(String templateName) throws IOException {
+        // a template compiled while the cache is swapped goes to the old map
+        Map<String, Template> templates = cache;
+        Template template = templates.get(templateName);
+        if (template == null) {
+            template = compile(templateName);
+            templates.put(templateName, template);
         }
+        return template;
     }
 
-    private static String getContent(String templateName) throws IOException {
-        TemplateCache templateCache = cache.get(templateName);
+    private static Template compile(String templateName) throws IOException {
         Path templatePath = TEMPLATES_PATH.resolve(templateName);
-        boolean needLoading;
-        long lastModified = -1;
-        if (templateCache == null) {
-            needLoading = true;
-        } else {
-            lastModified = Files.getLastModifiedTime(templatePath).toMillis();
-            needLoading = lastModified > templateCache.time;
-        }
-        if (needLoading) {
-            cache.remove(templateName);
-            templateCache = new TemplateCache(lastModified, new String(Files.readAllBytes(templatePath), StandardCharsets.UTF_8));
-            cache.put(templateName, templateCache);
-        }
-        return templateCache.content;
+        return Template.compile(new String(Files.readAllBytes(templatePath), StandardCharsets.UTF_8));
     }
 }
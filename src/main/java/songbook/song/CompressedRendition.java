@@ -0,0 +1,89 @@
+package songbook.song;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compressed rendition of a song (raw file or rendered page).
+ * <p>
+ * Data is compressed once as a raw deflate stream, gzip and deflate (zlib) encodings are
+ * sent as this stream between their own header and trailer.
+ */
+public class CompressedRendition {
+
+    public static final String GZIP = "gzip";
+
+    public static final String DEFLATE = "deflate";
+
+    private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+    /** zlib header for best compression */
+    private static final byte[] ZLIB_HEADER = { 0x78, (byte) 0xda };
+
+    private final byte[] deflated;
+
+    private final int crc32;
+
+    private final int adler32;
+
+    private final int length;
+
+    public CompressedRendition(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            byte[] buffer = new byte[Math.max(64, data.length / 2)];
+            int size = 0;
+            while (!deflater.finished()) {
+                if (size == buffer.length) buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                size += deflater.deflate(buffer, size, buffer.length - size);
+            }
+            deflated = Arrays.copyOf(buffer, size);
+        } finally {
+            deflater.end();
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        crc32 = (int) crc.getValue();
+        Adler32 adler = new Adler32();
+        adler.update(data);
+        adler32 = (int) adler.getValue();
+        length = data.length;
+    }
+
+    /** Returns buffers to send for encoding ({@link #GZIP} or {@link #DEFLATE}). */
+    public ByteBuffer[] encoded(String encoding) {
+        ByteBuffer body = ByteBuffer.wrap(deflated).asReadOnlyBuffer();
+        if (GZIP.equals(encoding)) {
+            ByteBuffer trailer = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+            trailer.putInt(crc32).putInt(length).flip();
+            return new ByteBuffer[] { ByteBuffer.wrap(GZIP_HEADER).asReadOnlyBuffer(), body, trailer };
+        } else if (DEFLATE.equals(encoding)) {
+            ByteBuffer trailer = ByteBuffer.allocate(4);
+            trailer.putInt(adler32).flip();
+            return new ByteBuffer[] { ByteBuffer.wrap(ZLIB_HEADER).asReadOnlyBuffer(), body, trailer };
+        }
+        throw new IllegalArgumentException("Unknown encoding " + encoding);
+    }
+
+    /** Returns encoded length for encoding ({@link #GZIP} or {@link #DEFLATE}). */
+    public long encodedLength(String encoding) {
+        return deflated.length + (GZIP.equals(encoding) ? GZIP_HEADER.length + 8 : ZLIB_HEADER.length + 4);
+    }
+
+    /** Uncompressed length */
+    public int getLength() {
+        return length;
+    }
+
+    /** Estimated memory used */
+    public long estimateBytes() {
+        return 48 + deflated.length;
+    }
+}
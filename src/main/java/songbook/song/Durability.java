@@ -0,0 +1,24 @@
+package songbook.song;
+
+/**
+ * Durability requested for a write in the song or index databases.
+ */
+public enum Durability {
+
+    /** The write is durable when the call returns. */
+    SYNC,
+
+    /** The write is grouped with others and the call waits for the group to be durable. */
+    GROUPED,
+
+    /** The write is grouped with others and the call returns without waiting. */
+    DEFERRED;
+
+    /** Parses a durability name (case insensitive), returns defaultValue when name is null or empty. */
+    public static Durability parse(String name, Durability defaultValue) {
+        if (name == null || name.isEmpty()) {
+            return defaultValue;
+        }
+        return Durability.valueOf(name.trim().toUpperCase());
+    }
+}
@@ -0,0 +1,429 @@
+package songbook.song;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Stores each song in a '&lt;id&gt;.song' file of a folder.
+ * <p>
+ * With the sharded layout, songs are spread in 256 sub folders named by a hash of their
+ * id to keep folders small for large catalogs. Songs still in the folder itself (flat layout)
+ * are read until they're moved with {@link #moveToShards()}.
+ * <p>
+ * Songs are written to a temporary file which is synced then renamed over the song file,
+ * a crash never leaves a partially written song. Syncs and renames of grouped writes are
+ * done together by a {@link GroupCommitter}.
+ */
+public class FileSongStore implements SongStore {
+
+    public static String SONG_EXTENSION = ".song";
+
+    private final Logger logger = Logger.getLogger("Songbook");
+
+    private static final String TEMPORARY_EXTENSION = ".tmp";
+
+    private static final int SHARDS = 256;
+
+    /** Written song waiting for sync, temporary is null when it's already renamed. */
+    private static class PendingWrite {
+        final Path temporary;
+        final Path target;
+
+        PendingWrite(Path temporary, Path target) {
+            this.temporary = temporary;
+            this.target = target;
+        }
+    }
+
+    private final Path songDir;
+
+    private final boolean sharded;
+
+    private final GroupCommitter committer;
+
+    /** Writes to sync with next commit, in write order. */
+    private final List<PendingWrite> pending = new ArrayList<>();
+
+    /** Number of the next temporary file, started from time to not collide with a previous run. */
+    private final AtomicLong nextTemporary = new AtomicLong(System.nanoTime());
+
+    public FileSongStore(Path songDir) throws IOException {
+        this(songDir, 1000, 100, false);
+    }
+
+    /**
+     * @param commitWindowMillis maximum delay before grouped writes are synced.
+     * @param commitMaxPending number of pending writes which triggers a sync.
+     * @param sharded true to write songs in hashed sub folders.
+     */
+    public FileSongStore(Path songDir, long commitWindowMillis, int commitMaxPending, boolean sharded) throws IOException {
+        this.songDir = songDir;
+        this.sharded = sharded;
+        this.committer = new GroupCommitter("songs", commitWindowMillis, commitMaxPending, this::syncPendingWrites);
+
+        if (Files.exists(songDir) == false) {
+            Files.createDirectories(songDir);
+        }
+        if (sharded) {
+            // all shards exist to be watched
+            for (int shard = 0; shard < SHARDS; shard++) {
+                Files.createDirectories(songDir.resolve(shardName(shard)));
+            }
+        }
+        for (Path folder : getSongDirs()) {
+            deleteTemporaryFiles(folder);
+        }
+    }
+
+    public Path getSongDir() {
+        return songDir;
+    }
+
+    public boolean isSharded() {
+        return sharded;
+    }
+
+    /** Song folder followed by its shards. */
+    public List<Path> getSongDirs() {
+        List<Path> folders = new ArrayList<>();
+        folders.add(songDir);
+        if (sharded) {
+            for (int shard = 0; shard < SHARDS; shard++) {
+                folders.add(songDir.resolve(shardName(shard)));
+            }
+        }
+        return folders;
+    }
+
+    @Override
+    public Stream<String> listSongIds() {
+        try {
+            return listSongFiles().keySet().stream();
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Can't list songs", e);
+            return Stream.empty();
+        }
+    }
+
+    @Override
+    public Map<String, String> listFingerprints() throws IOException {
+        Map<String, String> fingerprints = new HashMap<>();
+        listSongFiles().forEach((id, attributes) -> fingerprints.put(id, fingerprint(attributes)));
+        return fingerprints;
+    }
+
+    /**
+     * Lists song files by id with their attributes, shards are listed in parallel
+     * and their songs replace songs not moved yet from the flat layout.
+     */
+    private Map<String, BasicFileAttributes> listSongFiles() throws IOException {
+        Map<String, BasicFileAttributes> songs = new ConcurrentHashMap<>();
+        listSongFiles(songDir, songs);
+        if (sharded) {
+            try {
+                getSongDirs().subList(1, SHARDS + 1).parallelStream().forEach(shard -> {
+                    try {
+                        listSongFiles(shard, songs);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+        return songs;
+    }
+
+    private static void listSongFiles(Path folder, Map<String, BasicFileAttributes> songs) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(folder, "*" + SONG_EXTENSION)) {
+            for (Path path : files) {
+                BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                if (attributes.isRegularFile()) {
+                    songs.put(extractId(path), attributes);
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // shard removed by hand
+        }
+    }
+
+    /** Fingerprint is the last modified time and size of the song file. */
+    @Override
+    public String getFingerprint(String id) {
+        try {
+            return fingerprint(Files.readAttributes(findSongPath(id), BasicFileAttributes.class));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public boolean exists(String id) {
+        return Files.exists(findSongPath(id));
+    }
+
+    @Override
+    public long getLastModified(String id) {
+        try {
+            return Files.getLastModifiedTime(findSongPath(id)).toMillis();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /** Song file channel can be transferred to a socket without copy. */
+    @Override
+    public FileChannel read(String id) throws IOException {
+        return FileChannel.open(findSongPath(id), StandardOpenOption.READ);
+    }
+
+    /**
+     * Song file is replaced when the channel is closed: at once for {@link Durability#SYNC} and
+     * {@link Durability#DEFERRED} (synced later), with the next group for {@link Durability#GROUPED}.
+     */
+    @Override
+    public WritableByteChannel write(String id, Durability durability) throws IOException {
+        Path target = getSongPath(id);
+        if (Files.exists(target.getParent()) == false) {
+            Files.createDirectories(target.getParent());
+        }
+        Path temporary = createTemporaryFile(target, id);
+        FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE);
+        return new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                return channel.write(src);
+            }
+
+            @Override
+            public boolean isOpen() {
+                return channel.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (!channel.isOpen()) return;
+                channel.close();
+                written(temporary, target, durability);
+                // the song was in the flat layout
+                if (sharded) Files.deleteIfExists(getFlatSongPath(id));
+            }
+        };
+    }
+
+    /**
+     * Creates an empty temporary file next to target with default permissions, like song files,
+     * and not only readable by owner as with Files.createTempFile. The rename keeps them.
+     */
+    private Path createTemporaryFile(Path target, String id) throws IOException {
+        while (true) {
+            Path temporary = target.resolveSibling("." + id + "-" + nextTemporary.getAndIncrement() + TEMPORARY_EXTENSION);
+            try {
+                return Files.createFile(temporary);
+            } catch (FileAlreadyExistsException e) {
+                // left by another store on the same folder, tries next number
+            }
+        }
+    }
+
+    private void written(Path temporary, Path target, Durability durability) throws IOException {
+        synchronized (pending) {
+            if (durability == Durability.DEFERRED) {
+                // visible now, older pending writes of this song are replaced
+                Iterator<PendingWrite> iterator = pending.iterator();
+                while (iterator.hasNext()) {
+                    PendingWrite write = iterator.next();
+                    if (write.temporary != null && write.target.equals(target)) {
+                        Files.deleteIfExists(write.temporary);
+                        iterator.remove();
+                    }
+                }
+                Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                pending.add(new PendingWrite(null, target));
+            } else {
+                pending.add(new PendingWrite(temporary, target));
+            }
+        }
+        committer.written(durability);
+    }
+
+    /**
+     * Syncs and renames pending writes in order then syncs their folders. Writes stay pending
+     * until they're renamed, a failed commit is retried.
+     */
+    private void syncPendingWrites() throws IOException {
+        List<PendingWrite> writes;
+        synchronized (pending) {
+            writes = new ArrayList<>(pending);
+        }
+        for (PendingWrite write : writes) {
+            try {
+                sync(write.temporary != null ? write.temporary : write.target);
+            } catch (NoSuchFileException e) {
+                // replaced by a deferred write or deleted since
+            }
+        }
+        synchronized (pending) {
+            for (PendingWrite write : writes) {
+                // writes replaced by a deferred write aren't pending anymore
+                if (write.temporary != null && pending.contains(write)) {
+                    Files.move(write.temporary, write.target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                }
+                pending.remove(write);
+            }
+        }
+        Set<Path> folders = new HashSet<>();
+        for (PendingWrite write : writes) {
+            folders.add(write.target.getParent());
+        }
+        for (Path folder : folders) {
+            syncFolder(folder);
+        }
+    }
+
+    private static void sync(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    /** Syncs renames, it isn't supported on all systems. */
+    private static void syncFolder(Path folder) {
+        try (FileChannel channel = FileChannel.open(folder, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // directories can't be opened on Windows
+        }
+    }
+
+    /** Removes temporary files left by an interrupted write. */
+    private void deleteTemporaryFiles(Path folder) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(folder, ".*" + TEMPORARY_EXTENSION)) {
+            for (Path file : files) {
+                logger.warning("Removing incomplete song write " + file);
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    @Override
+    public void delete(String id) throws IOException {
+        if (sharded) {
+            boolean deleted = Files.deleteIfExists(getSongPath(id));
+            if (!Files.deleteIfExists(getFlatSongPath(id)) && !deleted) throw new NoSuchFileException(getSongPath(id).toString());
+        } else {
+            Files.delete(getSongPath(id));
+        }
+    }
+
+    /**
+     * Moves songs of the flat layout to their shard while the store is used, songs are
+     * readable during the move. A song already written in its shard replaces the flat one.
+     * @return the number of moved songs.
+     */
+    public int moveToShards() throws IOException {
+        if (!sharded) throw new IllegalStateException("Songs aren't sharded in " + songDir);
+        int count = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(songDir, "*" + SONG_EXTENSION)) {
+            for (Path path : files) {
+                if (!Files.isRegularFile(path)) continue;
+                Path target = getSongPath(extractId(path));
+                try {
+                    // a link fails when the song is already in its shard, where a rename would
+                    // replace it, and keeps modification time and size (the song fingerprint)
+                    Files.createLink(target, path);
+                    Files.delete(path);
+                    count++;
+                } catch (FileAlreadyExistsException e) {
+                    Files.deleteIfExists(path);
+                } catch (NoSuchFileException e) {
+                    // written or deleted meanwhile
+                }
+            }
+        }
+        for (Path folder : getSongDirs()) {
+            syncFolder(folder);
+        }
+        return count;
+    }
+
+    @Override
+    public void sync() throws IOException {
+        committer.commit();
+    }
+
+    /** Syncs pending writes. */
+    @Override
+    public void close() throws IOException {
+        committer.close();
+    }
+
+    /**
+     * Assuming that file ending with '.song' extension
+     * @param songPath
+     * @return
+     */
+    private static String extractId(Path songPath) {
+        String filename = songPath.getFileName().toString();
+        return filename.substring(0, filename.length() - SONG_EXTENSION.length());
+    }
+
+    private static String fingerprint(BasicFileAttributes attributes) {
+        return Long.toHexString(attributes.lastModifiedTime().toMillis()) + "-" + Long.toHexString(attributes.size());
+    }
+
+    /** Path where song is written. */
+    private Path getSongPath(String id) {
+        return sharded ? songDir.resolve(shardName(shard(id))).resolve(id + SONG_EXTENSION) : getFlatSongPath(id);
+    }
+
+    private Path getFlatSongPath(String id) {
+        return songDir.resolve(id + SONG_EXTENSION);
+    }
+
+    /** Path where song is read, in its shard or in the flat layout if it isn't moved yet. */
+    private Path findSongPath(String id) {
+        Path path = getSongPath(id);
+        if (!sharded || Files.exists(path)) return path;
+        Path flat = getFlatSongPath(id);
+        // checks the shard again in case the song was moved meanwhile
+        return Files.exists(flat) || !Files.exists(path) ? flat : path;
+    }
+
+    private static int shard(String id) {
+        CRC32 crc = new CRC32();
+        crc.update(id.getBytes(StandardCharsets.UTF_8));
+        return (int) (crc.getValue() & (SHARDS - 1));
+    }
+
+    private static String shardName(int shard) {
+        return String.format("%02x", shard);
+    }
+}
@@ -0,0 +1,181 @@
+package songbook.song;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Groups durable commits (index commits, file syncs) of several writes on a time/count window.
+ * <p>
+ * Each write registers itself and gets a generation, the commit action runs once for all
+ * writes registered since the last commit, either when the window expires or when too many
+ * writes are pending.
+ */
+class GroupCommitter implements Closeable {
+
+    /** Action which makes all registered writes durable. */
+    interface Action {
+        void run() throws IOException;
+    }
+
+    private final Logger logger = Logger.getLogger("Songbook");
+
+    private final String name;
+
+    private final Action action;
+
+    private final long windowMillis;
+
+    private final int maxPending;
+
+    private final ScheduledExecutorService scheduler;
+
+    /** Only one commit action at a time. */
+    private final Object commitLock = new Object();
+
+    /** Generation of the last registered write. */
+    private long registered = 0;
+
+    /** Generation of the last durable write. */
+    private long committed = 0;
+
+    /** Generation of the last failed commit. */
+    private long failed = 0;
+
+    private IOException failure;
+
+    private ScheduledFuture<?> scheduled;
+
+    GroupCommitter(String name, long windowMillis, int maxPending, Action action) {
+        this.name = name;
+        this.action = action;
+        this.windowMillis = windowMillis;
+        this.maxPending = Math.max(1, maxPending);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, name + "-commit");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Registers a write already applied and schedules its commit.
+     * @return the generation to wait for with {@link #await(long)}.
+     */
+    synchronized long register() {
+        long generation = ++registered;
+        if (registered - committed >= maxPending) {
+            schedule(0);
+        } else if (scheduled == null) {
+            schedule(windowMillis);
+        }
+        return generation;
+    }
+
+    /** Registers a write and handles it according to durability. */
+    void written(Durability durability) throws IOException {
+        long generation = register();
+        switch (durability) {
+            case SYNC:
+                commit();
+                break;
+            case GROUPED:
+                await(generation);
+                break;
+            case DEFERRED:
+            default:
+                break;
+        }
+    }
+
+    /** Waits for the given generation to be durable. */
+    void await(long generation) throws IOException {
+        synchronized (this) {
+            while (committed < generation) {
+                if (failed >= generation) {
+                    throw new IOException("Can't commit " + name, failure);
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for " + name + " commit");
+                }
+            }
+        }
+    }
+
+    /** Commits now all registered writes. */
+    void commit() throws IOException {
+        synchronized (commitLock) {
+            long generation;
+            synchronized (this) {
+                generation = registered;
+                if (generation <= committed) return;
+            }
+            try {
+                action.run();
+            } catch (IOException e) {
+                synchronized (this) {
+                    failed = generation;
+                    failure = e;
+                    notifyAll();
+                }
+                throw e;
+            }
+            synchronized (this) {
+                committed = generation;
+                notifyAll();
+            }
+        }
+    }
+
+    /** Number of writes registered but not yet durable. */
+    synchronized long pending() {
+        return registered - committed;
+    }
+
+    private void schedule(long delay) {
+        if (scheduler.isShutdown()) return;
+        if (scheduled != null) {
+            if (delay > 0) return;
+            scheduled.cancel(false);
+        }
+        scheduled = scheduler.schedule(this::scheduledCommit, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void scheduledCommit() {
+        synchronized (this) {
+            scheduled = null;
+        }
+        try {
+            commit();
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Can't commit " + name + ", will retry", e);
+            synchronized (this) {
+                if (scheduled == null) schedule(windowMillis);
+            }
+        }
+    }
+
+    /** Stops the scheduler and commits pending writes, a running commit isn't interrupted. */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (scheduled != null) scheduled.cancel(false);
+            scheduler.shutdown();
+        }
+        try {
+            scheduler.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        commit();
+    }
+}
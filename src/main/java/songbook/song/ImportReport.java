@@ -0,0 +1,136 @@
+package songbook.song;
+
+import songbook.server.Server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Result of a bulk import: the song id or the error of each archive entry, and the time it took.
+ * When the archive can't be read to its end the report is failed, entries read before are kept.
+ */
+public class ImportReport {
+
+    /** Result of an archive entry, either id or error is set. */
+    public static class Entry {
+        final String name;
+        volatile String id;
+        volatile String error;
+
+        Entry(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getError() {
+            return error;
+        }
+    }
+
+    private final long start = System.nanoTime();
+
+    private long end = -1;
+
+    /** Entries in archive order */
+    private final List<Entry> entries = new ArrayList<>();
+
+    final AtomicInteger skipped = new AtomicInteger();
+
+    private volatile String error;
+
+    synchronized Entry add(String name) {
+        Entry entry = new Entry(name);
+        entries.add(entry);
+        return entry;
+    }
+
+    /** The archive couldn't be read to its end */
+    void fail(String error) {
+        this.error = error;
+    }
+
+    /** Stops the timer */
+    ImportReport done() {
+        end = System.nanoTime();
+        return this;
+    }
+
+    public synchronized List<Entry> getEntries() {
+        return new ArrayList<>(entries);
+    }
+
+    public synchronized int getImported() {
+        return (int) entries.stream().filter(entry -> entry.id != null).count();
+    }
+
+    public synchronized int getFailed() {
+        return entries.size() - getImported();
+    }
+
+    /** Error reading the archive or null if it was read to its end */
+    public String getError() {
+        return error;
+    }
+
+    /** Number of archive entries which aren't songs */
+    public int getSkipped() {
+        return skipped.get();
+    }
+
+    public long getMillis() {
+        return ((end < 0 ? System.nanoTime() : end) - start) / 1_000_000;
+    }
+
+    /** Writes the report as JSON or as text with one entry per line. */
+    public void write(Appendable out, String mimeType) throws IOException {
+        List<Entry> entries = getEntries();
+        if (Server.MIME_APPLICATION_JSON.equals(mimeType)) {
+            out.append("{\"imported\":").append(String.valueOf(getImported()));
+            out.append(",\"failed\":").append(String.valueOf(getFailed()));
+            out.append(",\"skipped\":").append(String.valueOf(getSkipped()));
+            out.append(",\"millis\":").append(String.valueOf(getMillis()));
+            if (error != null) {
+                out.append(",\"error\":");
+                SongUtils.appendJsonString(out, error);
+            }
+            out.append(",\"songs\":[");
+            for (int i = 0; i < entries.size(); i++) {
+                Entry entry = entries.get(i);
+                if (i > 0) out.append(',');
+                out.append("{\"entry\":");
+                SongUtils.appendJsonString(out, entry.name);
+                if (entry.id != null) {
+                    out.append(",\"id\":");
+                    SongUtils.appendJsonString(out, entry.id);
+                } else {
+                    out.append(",\"error\":");
+                    SongUtils.appendJsonString(out, entry.error);
+                }
+                out.append('}');
+            }
+            out.append("]}");
+        } else {
+            out.append(toString()).append('\n');
+            for (Entry entry : entries) {
+                out.append(entry.name).append('\t');
+                out.append(entry.id != null ? entry.id : "error: " + entry.error).append('\n');
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        String report = String.format("%d songs imported (%d failed, %d skipped) in %d ms",
+                getImported(), getFailed(), getSkipped(), getMillis());
+        return error == null ? report : report + ", archive error: " + error;
+    }
+}
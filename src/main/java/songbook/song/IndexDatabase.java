@@ -3,23 +3,50 @@ package songbook.song;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.StoredField;
 import org.apache.lucene.document.StringField;
+import org.apache.lucene.facet.*;
+import org.apache.lucene.facet.sortedset.DefaultSortedSetDocValuesReaderState;
+import org.apache.lucene.facet.sortedset.SortedSetDocValuesFacetCounts;
+import org.apache.lucene.facet.sortedset.SortedSetDocValuesReaderState;
 import org.apache.lucene.index.*;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.queryparser.classic.QueryParser;
 import org.apache.lucene.search.*;
-import org.apache.lucene.search.SortField.Type;
+import org.apache.lucene.search.suggest.Lookup.LookupResult;
 import org.apache.lucene.store.Directory;
-import org.apache.lucene.store.NIOFSDirectory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.BytesRef;
 import songbook.server.Server;
 import songbook.server.Templates;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URLEncoder;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 /**
@@ -30,6 +57,33 @@ import java.util.stream.Stream;
  */
 public class IndexDatabase {
 
+    /** Number of hits in a page of results when not given. */
+    public static final int DEFAULT_PAGE_SIZE = 100;
+
+    /**
+     * Version of documents structure, the index is rebuilt when it was written with another version.
+     */
+    private static final String INDEX_FORMAT = "3";
+
+    /** Every song header property is a multi valued facet. */
+    static final FacetsConfig FACETS_CONFIG = new FacetsConfig() {
+        @Override
+        protected DimConfig getDefaultDimConfig() {
+            DimConfig config = new DimConfig();
+            config.multiValued = true;
+            return config;
+        }
+    };
+
+    /** Maximum number of facet counts cached for an index generation. */
+    private static final int MAX_CACHED_FACETS = 1000;
+
+    /** RAM buffer used while rebuilding the index. */
+    private static final double BULK_RAM_BUFFER_MB = 64;
+
+    /** Above this number of changed songs completions are rebuilt instead of updated. */
+    private static final int MAX_SUGGESTER_UPDATES = 50;
+
     private final Logger logger = Logger.getLogger("Songbook");
 
     private final SongDatabase songDb;
@@ -40,84 +94,480 @@ public class IndexDatabase {
 
     private Directory index;
 
+    /** Near real time searchers shared by all readers, refreshed after each write. */
+    private final SearcherManager searcherManager;
+
+    /** Groups index commits of writes that don't need to be durable right away. */
+    private final GroupCommitter committer;
+
+    private volatile FacetGeneration facetGeneration;
+
+    /** Search pages for current index generation */
+    private final SearchCache searchCache;
+
+    /** Title and artist completions, follows index changes */
+    private final SongSuggester suggester;
+
+    /** Held during a bulk, updates and reconciliations wait for it to not index the bulk songs again. */
+    private final ReentrantLock bulkLock = new ReentrantLock();
+
+    /** Index writer buffer to restore at the end of bulk. */
+    private double bulkRamBuffer;
+
+    /** Folder where the next generation is built by {@link #analyzeSongs()}. */
+    private final Path nextIndexFolder;
+
+    /**
+     * Writes hold the read lock, publishing a generation holds the write lock so that no
+     * write or commit sees the index between the old and the new generation.
+     */
+    private final ReadWriteLock generationLock = new ReentrantReadWriteLock();
+
+    /** Number of the published generation, stored in commit data. */
+    private volatile long generation;
+
+    /** Songs written while the next generation is built, they're indexed again before it's published. */
+    private volatile Set<String> writtenDuringRebuild;
+
     public IndexDatabase(Path indexFolder, SongDatabase songDb) throws IOException {
+        this(indexFolder, IndexDirectory.getDefault(), songDb, 1000, 100, 16 * 1024 * 1024);
+    }
+
+    /**
+     * @param directoryType Lucene directory implementation used to store the index.
+     * @param commitWindowMillis maximum delay before grouped writes are committed.
+     * @param commitMaxPending number of pending grouped writes that triggers a commit.
+     * @param searchCacheBytes memory budget for cached search pages.
+     */
+    public IndexDatabase(Path indexFolder, IndexDirectory directoryType, SongDatabase songDb, long commitWindowMillis, int commitMaxPending, long searchCacheBytes) throws IOException {
         this.songDb = songDb;
+        this.searchCache = new SearchCache(searchCacheBytes);
+        this.nextIndexFolder = indexFolder.resolveSibling(indexFolder.getFileName() + ".next");
 
         analyzer = new StandardAnalyzer();
-        index = new NIOFSDirectory(indexFolder);
+        index = directoryType.open(indexFolder);
+        boolean indexExists = DirectoryReader.indexExists(index);
+        Map<String, String> commitData = indexExists ? SegmentInfos.readLatestCommit(index).getUserData() : Collections.emptyMap();
+        String format = commitData.get("format");
+        generation = Long.parseLong(commitData.getOrDefault("generation", "0"));
         indexWriter = new IndexWriter(index, new IndexWriterConfig(analyzer));
-        if (!DirectoryReader.indexExists(index)) {
+        setCommitData();
+        searcherManager = new SearcherManager(indexWriter, true, null);
+        suggester = new SongSuggester();
+        searcherManager.addListener(new ReferenceManager.RefreshListener() {
+            @Override
+            public void beforeRefresh() {
+            }
+
+            @Override
+            public void afterRefresh(boolean didRefresh) {
+                if (didRefresh) searchCache.invalidate();
+            }
+        });
+        committer = new GroupCommitter("index", commitWindowMillis, commitMaxPending, this::commit);
+        // left by an interrupted rebuild
+        deleteFolder(nextIndexFolder);
+        if (!indexExists || !INDEX_FORMAT.equals(format)) {
             analyzeSongs();
+        } else {
+            reconcile();
         }
     }
 
     public void addOrUpdateDocument(Document document) throws IOException {
-        indexWriter.updateDocument(new Term("id", document.get("id")), document);
-        indexWriter.commit();
+        addOrUpdateDocument(document, Durability.SYNC);
+    }
+
+    /**
+     * Adds or updates a document, it's visible to searches when the call returns
+     * and it's committed according to durability.
+     */
+    public void addOrUpdateDocument(Document document, Durability durability) throws IOException {
+        String id = document.get("id");
+        generationLock.readLock().lock();
+        try {
+            indexWriter.updateDocument(new Term("id", id), prepareDocument(document, id, songDb.getFingerprint(id)));
+            searcherManager.maybeRefreshBlocking();
+            writtenDuringRebuild(id);
+        } finally {
+            generationLock.readLock().unlock();
+        }
+        suggester.update(id, document.get("title"), document.getValues("artist"));
+        // waits for commit without the lock, publishing a generation would wait for it
+        committer.written(durability);
     }
 
 
+    /**
+     * Starts a bulk: documents are added with {@link #addBulkDocument(Document)} and
+     * {@link #commitBulk(Collection)} must be called by the same thread to end it.
+     */
+    public void beginBulk() {
+        bulkLock.lock();
+        bulkRamBuffer = indexWriter.getConfig().getRAMBufferSizeMB();
+        // larger buffer avoids flushing small segments during bulk indexing
+        indexWriter.getConfig().setRAMBufferSizeMB(Math.max(bulkRamBuffer, BULK_RAM_BUFFER_MB));
+    }
+
+    /** Adds or updates a document of a bulk, it can be called from several threads. */
+    public void addBulkDocument(Document document) throws IOException {
+        String id = document.get("id");
+        generationLock.readLock().lock();
+        try {
+            indexWriter.updateDocument(new Term("id", id), prepareDocument(document, id, songDb.getFingerprint(id)));
+        } finally {
+            generationLock.readLock().unlock();
+        }
+    }
+
+    /** Commits the bulk documents at once, makes them visible to searches and completes them. */
+    public void commitBulk(Collection<String> ids) throws IOException {
+        try {
+            commit();
+            searcherManager.maybeRefreshBlocking();
+            updateSuggester(ids);
+        } finally {
+            indexWriter.getConfig().setRAMBufferSizeMB(bulkRamBuffer);
+            bulkLock.unlock();
+        }
+    }
+
     /** Returns the title of a song*/
     public String getTitle(String id) throws IOException {
-        DirectoryReader reader = DirectoryReader.open(index);
-        IndexSearcher searcher = new IndexSearcher(reader);
-
-        ScoreDoc[] scoreDocs = searcher.search(new TermQuery(new Term("id", id)), 1).scoreDocs;
-        String title = null;
-        if (scoreDocs.length > 0) {
-            title = reader.document(scoreDocs[0].doc).get("title");
+        IndexSearcher searcher = searcherManager.acquire();
+        try {
+            ScoreDoc[] scoreDocs = searcher.search(new TermQuery(new Term("id", id)), 1).scoreDocs;
+            String title = null;
+            if (scoreDocs.length > 0) {
+                title = searcher.doc(scoreDocs[0].doc).get("title");
+            }
+            return title;
+        } finally {
+            searcherManager.release(searcher);
         }
-        reader.close();
-        return title;
     }
 
     public void removeDocument(String id) throws IOException {
-        indexWriter.deleteDocuments(new Term("id", id));
-        indexWriter.commit();
-    }
-
-    public void analyzeSongs() throws IOException {
-        // clears index
-        indexWriter.deleteAll();
-        indexWriter.commit();
-
-        songDb.listSongIds().forEach(
-            (id) -> {
-                String contents = songDb.getSongContents(id);
-                if (contents != null) {
-                    Document document = SongUtils.indexSong(contents);
-                    document.add(new StringField("id", id, Field.Store.YES));
-                    try {
-                        indexWriter.addDocument(document);
-                        indexWriter.commit();
-                    } catch (IOException e) {
-                        logger.log(Level.WARNING, "Can't index song '" + id + "'", e);
+        removeDocument(id, Durability.SYNC);
+    }
+
+    /**
+     * Removes a document, it's removed from searches when the call returns
+     * and it's committed according to durability.
+     */
+    public void removeDocument(String id, Durability durability) throws IOException {
+        generationLock.readLock().lock();
+        try {
+            indexWriter.deleteDocuments(new Term("id", id));
+            searcherManager.maybeRefreshBlocking();
+            writtenDuringRebuild(id);
+        } finally {
+            generationLock.readLock().unlock();
+        }
+        suggester.remove(id);
+        committer.written(durability);
+    }
+
+    private void writtenDuringRebuild(String id) {
+        Set<String> written = writtenDuringRebuild;
+        if (written != null) written.add(id);
+    }
+
+    /** Commits index writes, it can't happen while a generation is published. */
+    private void commit() throws IOException {
+        generationLock.readLock().lock();
+        try {
+            indexWriter.commit();
+        } finally {
+            generationLock.readLock().unlock();
+        }
+    }
+
+    private void setCommitData() {
+        Map<String, String> commitData = new HashMap<>();
+        commitData.put("format", INDEX_FORMAT);
+        commitData.put("generation", Long.toString(generation));
+        indexWriter.setCommitData(commitData);
+    }
+
+    /** Number of the index generation served to readers, incremented when the index is rebuilt. */
+    public long getGeneration() {
+        return generation;
+    }
+
+    /** Commits pending writes, closes the shared searchers, the index writer and directory. */
+    public void close() throws IOException {
+        committer.close();
+        suggester.close();
+        searcherManager.close();
+        indexWriter.close();
+        index.close();
+    }
+
+    /**
+     * Rebuilds the whole index as a new generation. Songs are read and parsed in parallel in a
+     * separate index, searches and writes use the current generation until the new one is
+     * complete and published at once.
+     */
+    public IndexReport analyzeSongs() throws IOException {
+        bulkLock.lock();
+        try {
+            return indexAllSongs();
+        } finally {
+            bulkLock.unlock();
+        }
+    }
+
+    private IndexReport indexAllSongs() throws IOException {
+        IndexReport report = new IndexReport();
+        deleteFolder(nextIndexFolder);
+        writtenDuringRebuild = ConcurrentHashMap.newKeySet();
+        try (Directory next = FSDirectory.open(nextIndexFolder)) {
+            IndexWriterConfig config = new IndexWriterConfig(analyzer).setRAMBufferSizeMB(BULK_RAM_BUFFER_MB);
+            try (IndexWriter writer = new IndexWriter(next, config)) {
+                indexSongs(writer, songDb.listSongIds(), false, report);
+                publishGeneration(writer, next, report);
+            }
+        } finally {
+            writtenDuringRebuild = null;
+            deleteFolder(nextIndexFolder);
+        }
+        rebuildSuggester();
+        report.done();
+        logger.info("Indexed songs for generation " + generation + ": " + report);
+        return report;
+    }
+
+    /**
+     * Replaces the current index with the next generation: songs written meanwhile are indexed
+     * again in it, then it's copied in current index, committed and searchers are refreshed.
+     */
+    private void publishGeneration(IndexWriter writer, Directory next, IndexReport report) throws IOException {
+        generationLock.writeLock().lock();
+        try {
+            for (String id : writtenDuringRebuild) {
+                if (songDb.exists(id)) {
+                    indexSong(writer, id, true, report);
+                } else {
+                    writer.deleteDocuments(new Term("id", id));
+                }
+            }
+            writer.close();
+
+            indexWriter.deleteAll();
+            indexWriter.addIndexes(next);
+            generation++;
+            setCommitData();
+            indexWriter.commit();
+            searcherManager.maybeRefreshBlocking();
+        } finally {
+            generationLock.writeLock().unlock();
+        }
+    }
+
+    private static void deleteFolder(Path folder) throws IOException {
+        if (!Files.isDirectory(folder)) return;
+        try (Stream<Path> paths = Files.walk(folder)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    /**
+     * Compares song fingerprints with the ones stored in index and only reindexes
+     * songs which were added, changed or removed since they were indexed.
+     */
+    public IndexReport reconcile() throws IOException {
+        bulkLock.lock();
+        try {
+            return reconcileSongs();
+        } finally {
+            bulkLock.unlock();
+        }
+    }
+
+    private IndexReport reconcileSongs() throws IOException {
+        IndexReport report = new IndexReport();
+        Map<String, String> songs = songDb.listFingerprints();
+        Map<String, String> indexed = indexedFingerprints();
+
+        for (String id : indexed.keySet()) {
+            if (!songs.containsKey(id)) {
+                indexWriter.deleteDocuments(new Term("id", id));
+                report.removed.incrementAndGet();
+            }
+        }
+        Stream<String> changed = songs.entrySet().stream()
+                .filter(song -> !song.getValue().equals(indexed.get(song.getKey())))
+                .map(Map.Entry::getKey);
+        indexSongs(indexWriter, changed, true, report);
+        searcherManager.maybeRefreshBlocking();
+        rebuildSuggester();
+        report.done();
+        logger.info("Reconciled songs: " + report);
+        return report;
+    }
+
+    /**
+     * Reindexes or removes the given songs when their fingerprint differs from the indexed one,
+     * with one commit for all of them.
+     */
+    public IndexReport update(Collection<String> ids) throws IOException {
+        bulkLock.lock();
+        try {
+            return updateSongs(ids);
+        } finally {
+            bulkLock.unlock();
+        }
+    }
+
+    private IndexReport updateSongs(Collection<String> ids) throws IOException {
+        IndexReport report = new IndexReport();
+        List<String> changed = new ArrayList<>();
+        IndexSearcher searcher = searcherManager.acquire();
+        try {
+            for (String id : ids) {
+                String fingerprint = songDb.getFingerprint(id);
+                String indexed = indexedFingerprint(searcher, id);
+                if (fingerprint == null) {
+                    if (indexed != null) {
+                        indexWriter.deleteDocuments(new Term("id", id));
+                        suggester.remove(id);
+                        report.removed.incrementAndGet();
                     }
+                } else if (!fingerprint.equals(indexed)) {
+                    changed.add(id);
                 }
             }
-        );
-        indexWriter.commit();
+        } finally {
+            searcherManager.release(searcher);
+        }
 
+        if (!changed.isEmpty() || report.getRemoved() > 0) {
+            indexSongs(indexWriter, changed.stream(), true, report);
+            searcherManager.maybeRefreshBlocking();
+            updateSuggester(changed);
+        }
+        report.done();
+        return report;
     }
 
-    public void listArtists(Appendable out, String mimeType) throws IOException, ParseException {
-        DirectoryReader reader = DirectoryReader.open(index);
-        Fields fields = MultiFields.getFields(reader);
-        Terms artists = fields.terms("artist");
-        TermsEnum termsEnum = artists.iterator();
-        BytesRef term;
+    /** Returns the fingerprint stored for an indexed song or null. */
+    private static String indexedFingerprint(IndexSearcher searcher, String id) throws IOException {
+        ScoreDoc[] scoreDocs = searcher.search(new TermQuery(new Term("id", id)), 1).scoreDocs;
+        if (scoreDocs.length == 0) return null;
+        String fingerprint = searcher.doc(scoreDocs[0].doc, Collections.singleton("fingerprint")).get("fingerprint");
+        return fingerprint == null ? "" : fingerprint;
+    }
+
+    /** Returns the fingerprint stored for each indexed song. */
+    private Map<String, String> indexedFingerprints() throws IOException {
+        Map<String, String> fingerprints = new HashMap<>();
+        IndexSearcher searcher = searcherManager.acquire();
+        try {
+            Set<String> fields = new HashSet<>(Arrays.asList("id", "fingerprint"));
+            for (LeafReaderContext leaf : searcher.getIndexReader().leaves()) {
+                LeafReader reader = leaf.reader();
+                Bits liveDocs = reader.getLiveDocs();
+                for (int docId = 0; docId < reader.maxDoc(); docId++) {
+                    if (liveDocs == null || liveDocs.get(docId)) {
+                        Document document = reader.document(docId, fields);
+                        String fingerprint = document.get("fingerprint");
+                        fingerprints.put(document.get("id"), fingerprint == null ? "" : fingerprint);
+                    }
+                }
+            }
+        } finally {
+            searcherManager.release(searcher);
+        }
+        return fingerprints;
+    }
+
+    /**
+     * Reads, parses and indexes songs on one thread per core, then commits writer once.
+     * @param update true if songs may already be in index.
+     */
+    private void indexSongs(IndexWriter writer, Stream<String> ids, boolean update, IndexReport report) throws IOException {
+        double ramBuffer = writer.getConfig().getRAMBufferSizeMB();
+        // larger buffer avoids flushing small segments during bulk indexing
+        writer.getConfig().setRAMBufferSizeMB(Math.max(ramBuffer, BULK_RAM_BUFFER_MB));
+        try {
+            int threads = Runtime.getRuntime().availableProcessors();
+            ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+                Thread thread = new Thread(runnable, "index-songs");
+                thread.setDaemon(true);
+                return thread;
+            });
+            try {
+                ids.forEach(id -> executor.execute(() -> indexSong(writer, id, update, report)));
+            } finally {
+                executor.shutdown();
+            }
+            try {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while indexing songs");
+            }
+
+            writer.commit();
+        } finally {
+            writer.getConfig().setRAMBufferSizeMB(ramBuffer);
+        }
+    }
+
+    /** Reads, parses and adds a song to index, called from indexing threads. */
+    private void indexSong(IndexWriter writer, String id, boolean update, IndexReport report) {
+        try {
+            // fingerprint is read first, a concurrent change will be seen by next reconciliation
+            String fingerprint = songDb.getFingerprint(id);
+            String contents = songDb.getSongContents(id);
+            if (contents != null) {
+                Document document = SongUtils.indexSong(contents);
+                document.add(new StringField("id", id, Field.Store.YES));
+                if (update) {
+                    writer.updateDocument(new Term("id", id), prepareDocument(document, id, fingerprint));
+                } else {
+                    writer.addDocument(prepareDocument(document, id, fingerprint));
+                }
+                report.indexed.incrementAndGet();
+            } else {
+                report.failed.incrementAndGet();
+            }
+        } catch (IOException | RuntimeException e) {
+            // a failure in the executor would be lost otherwise
+            report.failed.incrementAndGet();
+            logger.log(Level.WARNING, "Can't index song '" + id + "'", e);
+        }
+    }
+
+    /** Adds id doc values and fingerprint to a song document and builds its facets. */
+    private static Document prepareDocument(Document document, String id, String fingerprint) throws IOException {
+        document.add(new SortedDocValuesField("id", new BytesRef(id)));
+        if (fingerprint != null) {
+            document.add(new StoredField("fingerprint", fingerprint));
+        }
+        return FACETS_CONFIG.build(document);
+    }
+
+    /** Writes artists counted with {@link #facetCounts}, sorted by name. */
+    public void writeArtists(FacetResult artists, Appendable out, String mimeType) throws IOException {
+        LabelAndValue[] values = artists == null ? new LabelAndValue[0] : artists.labelValues.clone();
+        Arrays.sort(values, (a, b) -> a.label.compareTo(b.label));
+
         if (Server.MIME_TEXT_HTML.equals(mimeType)) {
             Templates.startItems(out);
         }
-        while ((term = termsEnum.next()) != null) {
-            String artist = term.utf8ToString();
+        for (LabelAndValue value : values) {
             switch (mimeType) {
                 case Server.MIME_TEXT_HTML:
-                    Templates.artistItem(out, artist, termsEnum.docFreq());
+                    Templates.artistItem(out, value.label, value.value.intValue());
                     break;
                 case Server.MIME_TEXT_PLAIN:
                 default:
-                    out.append(artist).append(": ").append(Integer.toString(termsEnum.docFreq()));
+                    out.append(value.label).append(": ").append(value.value.toString()).append("\n");
                     break;
             }
         }
@@ -126,89 +576,238 @@ public class IndexDatabase {
         }
     }
 
+    /**
+     * Writes values of a song header property counted with {@link #facetCounts}, with the
+     * number of matching songs, most used first.
+     * @param facet counts or null if no song has the property.
+     * @param querystr free text query the values were counted for, kept in search links.
+     */
+    public void writeFacet(FacetResult facet, String querystr, Appendable out, String mimeType) throws IOException {
+        if (Server.MIME_TEXT_HTML.equals(mimeType)) {
+            Templates.startItems(out);
+        }
+        if (facet != null) {
+            for (LabelAndValue value : facet.labelValues) {
+                switch (mimeType) {
+                    case Server.MIME_TEXT_HTML:
+                        String href = (querystr == null || querystr.isEmpty() ? "/search" : "/search/" + URLEncoder.encode(querystr, "UTF-8"))
+                                + "?facet=" + URLEncoder.encode(facet.dim + ":" + value.label, "UTF-8");
+                        Templates.facetItem(out, href, value.label, value.value.intValue());
+                        break;
+                    case Server.MIME_TEXT_PLAIN:
+                    default:
+                        out.append(value.label).append(": ").append(value.value.toString()).append("\n");
+                        break;
+                }
+            }
+        }
+        if (Server.MIME_TEXT_HTML.equals(mimeType)) {
+            Templates.endItems(out);
+        }
+    }
+
+    /**
+     * Counts songs by value of a header property. Counts are cached until the index changes.
+     * @return all values with their count or null if no song has this property.
+     */
+    public FacetResult facetCounts(String dim, String querystr, Map<String, String> drillDowns) throws IOException, ParseException {
+        IndexSearcher searcher = searcherManager.acquire();
+        try {
+            FacetGeneration generation = facetGeneration(searcher);
+            if (generation.state == null) return null;
+
+            String key = dim + '\u0000' + (querystr == null ? "" : querystr) + '\u0000' + new TreeMap<>(drillDowns);
+            FacetResult result = generation.counts.get(key);
+            if (result == null) {
+                SortedSetDocValuesReaderState.OrdRange range = generation.state.getOrdRange(dim);
+                if (range != null) {
+                    FacetsCollector collector = new FacetsCollector();
+                    searcher.search(buildQuery(querystr, drillDowns), collector);
+                    Facets facets = new SortedSetDocValuesFacetCounts(generation.state, collector);
+                    result = facets.getTopChildren(range.end - range.start + 1, dim);
+                }
+                if (result == null) {
+                    result = new FacetResult(dim, new String[0], 0, new LabelAndValue[0], 0);
+                }
+                if (generation.counts.size() >= MAX_CACHED_FACETS) {
+                    generation.counts.clear();
+                }
+                generation.counts.put(key, result);
+            }
+            return result.labelValues.length == 0 ? null : result;
+        } finally {
+            searcherManager.release(searcher);
+        }
+    }
+
+    /** Gets facet state for searcher's reader, creates it when the index changed. */
+    private FacetGeneration facetGeneration(IndexSearcher searcher) throws IOException {
+        FacetGeneration generation = facetGeneration;
+        IndexReader reader = searcher.getIndexReader();
+        if (generation == null || generation.reader != reader) {
+            synchronized (this) {
+                generation = facetGeneration;
+                if (generation == null || generation.reader != reader) {
+                    generation = new FacetGeneration(reader);
+                    facetGeneration = generation;
+                }
+            }
+        }
+        return generation;
+    }
 
+    /** Facets ordinals and counts computed for a given index reader. */
+    private static class FacetGeneration {
 
-    public void search(String querystr, Appendable out, String mimeType) throws ParseException, IOException {
-        int hitsPerPage = 500;
-        IndexReader reader = DirectoryReader.open(index);
-        IndexSearcher searcher = new IndexSearcher(reader);
+        final IndexReader reader;
+
+        /** Null if no song has facets. */
+        final SortedSetDocValuesReaderState state;
 
-        ScoreDoc[] hits;
+        final Map<String, FacetResult> counts = new ConcurrentHashMap<>();
+
+        FacetGeneration(IndexReader reader) throws IOException {
+            this.reader = reader;
+            SortedSetDocValuesReaderState state = null;
+            try {
+                state = new DefaultSortedSetDocValuesReaderState(reader);
+            } catch (IllegalArgumentException e) {
+                // no facets indexed yet
+            }
+            this.state = state;
+        }
+    }
+
+    /** Free text query (all songs if empty) restricted by header property values. */
+    private Query buildQuery(String querystr, Map<String, String> drillDowns) throws ParseException {
+        Query query;
         if (querystr == null || querystr.isEmpty()) {
-            Query query = new MatchAllDocsQuery();
-            TopFieldDocs topFieldDocs = searcher.search(query, hitsPerPage, new Sort(new SortField("title", Type.STRING)));
-            hits = topFieldDocs.scoreDocs;
+            query = new MatchAllDocsQuery();
         } else {
             // the "song" arg specifies the default field to use
             // when no field is explicitly specified in the query.
-            Query query = new QueryParser("song", analyzer).parse(querystr);
-            TopScoreDocCollector collector = TopScoreDocCollector.create(hitsPerPage);
-            searcher.search(query, collector);
-            hits = collector.topDocs().scoreDocs;
+            query = new QueryParser("song", analyzer).parse(querystr);
         }
+        if (drillDowns.isEmpty()) return query;
 
-        if (Server.MIME_TEXT_HTML.equals(mimeType)) {
-            Templates.startItems(out);
+        DrillDownQuery drillDownQuery = new DrillDownQuery(FACETS_CONFIG, query);
+        for (Map.Entry<String, String> drillDown : drillDowns.entrySet()) {
+            drillDownQuery.add(drillDown.getKey(), drillDown.getValue());
         }
-        for (ScoreDoc hit : hits) {
-            int docId = hit.doc;
-            Document doc = searcher.doc(docId);
-            switch (mimeType) {
-                case Server.MIME_TEXT_HTML:
-                    String artists = Stream.of(doc.getValues("artist")).collect(Collectors.joining(", "));
-                    Templates.songItem(out, doc.get("id"), doc.get("title"), artists);
-                    break;
-                case Server.MIME_TEXT_PLAIN:
-                default:
-                    out.append(doc.get("id")).append("\n");
-                    break;
+        return drillDownQuery;
+    }
+
+    public void search(String querystr, Appendable out, String mimeType) throws ParseException, IOException {
+        search(querystr, Collections.emptyMap(), null, DEFAULT_PAGE_SIZE).write(out, mimeType);
+    }
+
+    /**
+     * Searches songs, all songs sorted by title when query is empty.
+     * Pages are cached until the index changes.
+     * @param drillDowns header property values that songs must have.
+     * @param after cursor of previous page or null for first page.
+     * @param pageSize maximum number of hits.
+     * @throws IllegalArgumentException if cursor is invalid.
+     */
+    public SearchPage search(String querystr, Map<String, String> drillDowns, String after, int pageSize) throws ParseException, IOException {
+        String normalizedQuery = querystr == null ? "" : querystr.trim().replaceAll("\\s+", " ");
+        String key = "search\u0000" + normalizedQuery + '\u0000' + new TreeMap<>(drillDowns) + '\u0000' + after + '\u0000' + pageSize;
+        SearchPage page = searchCache.get(key);
+        if (page != null) return page;
+
+        long generation = searchCache.getGeneration();
+        IndexSearcher searcher = searcherManager.acquire();
+        try {
+            Query query = buildQuery(normalizedQuery, drillDowns);
+            ScoreDoc[] hits;
+            if (normalizedQuery.isEmpty()) {
+                hits = searcher.searchAfter(SearchPage.decodeCursor(after, true, searcher), query, pageSize, SearchPage.TITLE_SORT).scoreDocs;
+            } else {
+                hits = searcher.searchAfter(SearchPage.decodeCursor(after, false, searcher), query, pageSize, SearchPage.SCORE_SORT).scoreDocs;
             }
+            page = new SearchPage(searcher, hits, pageSize);
+        } finally {
+            searcherManager.release(searcher);
         }
-        if (Server.MIME_TEXT_HTML.equals(mimeType)) {
-            Templates.endItems(out);
-        }
-
-        // reader can only be closed when there
-        // is no need to access the documents any more.
-        reader.close();
+        searchCache.put(key, page, generation);
+        return page;
     }
 
     public void songsByArtist(String artist, Appendable out, String mimeType) throws ParseException, IOException {
-        int hitsPerPage = 500;
-        IndexReader reader = DirectoryReader.open(index);
-        IndexSearcher searcher = new IndexSearcher(reader);
+        songsByArtist(artist, null, DEFAULT_PAGE_SIZE).write(out, mimeType);
+    }
 
-        ScoreDoc[] hits;
+    /**
+     * Searches songs of an artist, sorted by title. Pages are cached until the index changes.
+     * @param after cursor of previous page or null for first page.
+     * @param pageSize maximum number of hits.
+     * @throws IllegalArgumentException if cursor is invalid.
+     */
+    public SearchPage songsByArtist(String artist, String after, int pageSize) throws IOException {
+        String key = "artist\u0000" + artist + '\u0000' + after + '\u0000' + pageSize;
+        SearchPage page = searchCache.get(key);
+        if (page != null) return page;
 
-        TopScoreDocCollector collector = TopScoreDocCollector.create(hitsPerPage);
-        Query tq = new TermQuery(new Term("artist", artist));
-        searcher.search(tq, collector);
-        hits = collector.topDocs().scoreDocs;
+        long generation = searchCache.getGeneration();
+        IndexSearcher searcher = searcherManager.acquire();
+        try {
+            Query tq = new TermQuery(new Term("artist", artist));
+            ScoreDoc[] hits = searcher.searchAfter(SearchPage.decodeCursor(after, true, searcher), tq, pageSize, SearchPage.TITLE_SORT).scoreDocs;
+            page = new SearchPage(searcher, hits, pageSize);
+        } finally {
+            searcherManager.release(searcher);
+        }
+        searchCache.put(key, page, generation);
+        return page;
+    }
 
-        if (Server.MIME_TEXT_HTML.equals(mimeType)) {
-            Templates.startItems(out);
+    /**
+     * Returns the titles and artists completing query.
+     * @param type {@link SongSuggester#TITLE}, {@link SongSuggester#ARTIST} or null for both.
+     */
+    public List<LookupResult> suggest(String query, String type, int count) throws IOException {
+        return suggester.lookup(query, type, count);
+    }
+
+    public void writeSuggestions(List<LookupResult> suggestions, Appendable out, String mimeType) throws IOException {
+        suggester.write(suggestions, out, mimeType);
+    }
+
+    /** Updates completions of the given indexed songs. */
+    private void updateSuggester(Collection<String> ids) throws IOException {
+        // each update refreshes the suggester, it's faster to rebuild it for large batches
+        if (ids.size() > MAX_SUGGESTER_UPDATES) {
+            rebuildSuggester();
+            return;
         }
-        for (ScoreDoc hit : hits) {
-            int docId = hit.doc;
-            Document doc = searcher.doc(docId);
-            switch (mimeType) {
-                case Server.MIME_TEXT_HTML:
-                    String artists = Stream.of(doc.getValues("artist")).collect(Collectors.joining(", "));
-                    Templates.songItem(out, doc.get("id"), doc.get("title"), artists);
-                    break;
-                case Server.MIME_TEXT_PLAIN:
-                default:
-                    out.append(doc.get("id")).append("\n");
-                    break;
+        Set<String> fields = new HashSet<>(Arrays.asList("title", "artist"));
+        IndexSearcher searcher = searcherManager.acquire();
+        try {
+            for (String id : ids) {
+                ScoreDoc[] scoreDocs = searcher.search(new TermQuery(new Term("id", id)), 1).scoreDocs;
+                if (scoreDocs.length > 0) {
+                    Document document = searcher.doc(scoreDocs[0].doc, fields);
+                    suggester.update(id, document.get("title"), document.getValues("artist"));
+                }
             }
+        } finally {
+            searcherManager.release(searcher);
         }
-        if (Server.MIME_TEXT_HTML.equals(mimeType)) {
-            Templates.endItems(out);
+    }
+
+    /** Rebuilds completions from the songs in index. */
+    private void rebuildSuggester() throws IOException {
+        IndexSearcher searcher = searcherManager.acquire();
+        try {
+            suggester.rebuild(searcher);
+        } finally {
+            searcherManager.release(searcher);
         }
+    }
 
-        // reader can only be closed when there
-        // is no need to access the documents any more.
-        reader.close();
+    /** Cache of search pages, gives hit, miss and eviction counts. */
+    public SearchCache getSearchCache() {
+        return searchCache;
     }
 
 }
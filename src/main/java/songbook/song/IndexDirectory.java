@@ -0,0 +1,61 @@
+package songbook.song;
+
+import org.apache.lucene.store.*;
+import org.apache.lucene.util.Constants;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Lucene directory implementations available to store the index.
+ */
+public enum IndexDirectory {
+
+    /** Memory mapped files, the operating system caches the index, for large catalogs. */
+    MMAP {
+        @Override
+        public Directory open(Path indexFolder) throws IOException {
+            return new MMapDirectory(indexFolder);
+        }
+    },
+
+    /** Positional reads with file channels, fallback when mapping files isn't possible. */
+    NIO {
+        @Override
+        public Directory open(Path indexFolder) throws IOException {
+            return new NIOFSDirectory(indexFolder);
+        }
+    },
+
+    /**
+     * Whole index in heap, preloaded from index folder when it exists, for small catalogs and tests.
+     * Changes aren't written to index folder, songs are reconciled at startup.
+     */
+    HEAP {
+        @Override
+        public Directory open(Path indexFolder) throws IOException {
+            if (Files.isDirectory(indexFolder)) {
+                try (FSDirectory fsDirectory = FSDirectory.open(indexFolder)) {
+                    return new RAMDirectory(fsDirectory, IOContext.READONCE);
+                }
+            }
+            return new RAMDirectory();
+        }
+    };
+
+    public abstract Directory open(Path indexFolder) throws IOException;
+
+    /** Memory mapped files on 64 bits JVMs, NIO otherwise. */
+    public static IndexDirectory getDefault() {
+        return Constants.JRE_IS_64BIT ? MMAP : NIO;
+    }
+
+    /** Parses a directory type name (case insensitive), returns the default when name is null or empty. */
+    public static IndexDirectory parse(String name) {
+        if (name == null || name.isEmpty()) {
+            return getDefault();
+        }
+        return IndexDirectory.valueOf(name.trim().toUpperCase());
+    }
+}
@@ -0,0 +1,52 @@
+package songbook.song;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts documents handled by an index operation and measures its time.
+ */
+public class IndexReport {
+
+    private final long start = System.nanoTime();
+
+    private long end = -1;
+
+    final AtomicInteger indexed = new AtomicInteger();
+
+    final AtomicInteger failed = new AtomicInteger();
+
+    final AtomicInteger removed = new AtomicInteger();
+
+    /** Stops the timer */
+    IndexReport done() {
+        end = System.nanoTime();
+        return this;
+    }
+
+    public int getIndexed() {
+        return indexed.get();
+    }
+
+    public int getFailed() {
+        return failed.get();
+    }
+
+    public int getRemoved() {
+        return removed.get();
+    }
+
+    public long getMillis() {
+        return ((end < 0 ? System.nanoTime() : end) - start) / 1_000_000;
+    }
+
+    public double getDocsPerSecond() {
+        long millis = getMillis();
+        return millis == 0 ? indexed.get() : indexed.get() * 1000.0 / millis;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d songs indexed (%d failed, %d removed) in %d ms, %.1f songs/s",
+                getIndexed(), getFailed(), getRemoved(), getMillis(), getDocsPerSecond());
+    }
+}
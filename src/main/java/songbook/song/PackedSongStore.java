@@ -0,0 +1,567 @@
+package songbook.song;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Stores songs as records appended to segment files.
+ * <p>
+ * A record is: magic, sequence, modification time, id length, contents length (-1 for a
+ * deletion), id, contents and CRC32. The latest record of each song is kept in an in-memory
+ * index and read from memory mapped segments. When the active segment is full a new one is
+ * started, sealed segments with mostly replaced or deleted records are compacted in
+ * background: their live records are copied to the active segment and the file is deleted.
+ * <p>
+ * At opening, segments are scanned to build the index, the record with the highest sequence
+ * wins. An incomplete record at the end of the last segment (interrupted write) is truncated.
+ */
+public class PackedSongStore implements SongStore {
+
+    public static final String SEGMENT_EXTENSION = ".pack";
+
+    private static final int MAGIC = 0x534f4e47;
+
+    /** magic, sequence, modification time, id length, contents length */
+    private static final int HEADER_BYTES = 4 + 8 + 8 + 2 + 4;
+
+    private static final int CRC_BYTES = 4;
+
+    private static final int DELETED = -1;
+
+    /** Location of the latest record of a song. */
+    private static class Record {
+        final int segment;
+        final long offset;
+        final int length;
+        final long sequence;
+        final int contentsLength;
+        final long modified;
+
+        Record(int segment, long offset, int length, long sequence, int contentsLength, long modified) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.sequence = sequence;
+            this.contentsLength = contentsLength;
+            this.modified = modified;
+        }
+
+        long contentsOffset(int idLength) {
+            return offset + HEADER_BYTES + idLength;
+        }
+
+        String fingerprint() {
+            return Long.toHexString(sequence) + "-" + Integer.toHexString(contentsLength);
+        }
+    }
+
+    private static class Segment {
+        final int number;
+        final Path path;
+        final FileChannel channel;
+        volatile MappedByteBuffer map;
+        long size;
+        long liveBytes;
+
+        Segment(int number, Path path, FileChannel channel) throws IOException {
+            this.number = number;
+            this.path = path;
+            this.channel = channel;
+            this.size = channel.size();
+        }
+
+        /** Returns a mapping containing at least end bytes, maps the segment again when it grew. */
+        MappedByteBuffer map(long end) throws IOException {
+            MappedByteBuffer current = map;
+            if (current == null || current.capacity() < end) {
+                synchronized (this) {
+                    current = map;
+                    if (current == null || current.capacity() < end) {
+                        current = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                        map = current;
+                    }
+                }
+            }
+            return current;
+        }
+    }
+
+    private final Logger logger = Logger.getLogger("Songbook");
+
+    private final Path folder;
+
+    private final long segmentBytes;
+
+    private final double compactionRatio;
+
+    private final ConcurrentHashMap<String, Record> index = new ConcurrentHashMap<>();
+
+    private final ConcurrentSkipListMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+
+    private final ScheduledExecutorService compactor;
+
+    private final GroupCommitter committer;
+
+    /** Segment receiving new records, guarded by this */
+    private Segment active;
+
+    private long nextSequence = 1;
+
+    public PackedSongStore(Path folder) throws IOException {
+        this(folder, 64 * 1024 * 1024, 0.5, 60_000, 1000, 100);
+    }
+
+    /**
+     * @param segmentBytes size from which a new segment is started.
+     * @param compactionRatio ratio of dead bytes from which a sealed segment is compacted.
+     * @param compactionMillis delay between compaction checks, 0 to only compact with {@link #compact()}.
+     * @param commitWindowMillis maximum delay before grouped writes are synced.
+     * @param commitMaxPending number of pending writes which triggers a sync.
+     */
+    public PackedSongStore(Path folder, long segmentBytes, double compactionRatio, long compactionMillis,
+                           long commitWindowMillis, int commitMaxPending) throws IOException {
+        // records are read with int offsets in mapped segments
+        if (segmentBytes <= 0 || segmentBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Segment size must be between 1 and " + Integer.MAX_VALUE + " bytes: " + segmentBytes);
+        }
+        this.folder = folder;
+        this.segmentBytes = segmentBytes;
+        this.compactionRatio = compactionRatio;
+        this.committer = new GroupCommitter("packed-songs", commitWindowMillis, commitMaxPending, this::syncActiveSegment);
+        if (Files.exists(folder) == false) {
+            Files.createDirectories(folder);
+        }
+        open();
+
+        if (compactionMillis > 0) {
+            compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "compact-songs");
+                thread.setDaemon(true);
+                return thread;
+            });
+            compactor.scheduleWithFixedDelay(() -> {
+                try {
+                    compact();
+                } catch (IOException | RuntimeException e) {
+                    logger.log(Level.WARNING, "Can't compact songs in " + folder, e);
+                }
+            }, compactionMillis, compactionMillis, TimeUnit.MILLISECONDS);
+        } else {
+            compactor = null;
+        }
+    }
+
+    @Override
+    public Stream<String> listSongIds() {
+        return new ArrayList<>(index.keySet()).stream();
+    }
+
+    @Override
+    public Map<String, String> listFingerprints() {
+        Map<String, String> fingerprints = new HashMap<>();
+        index.forEach((id, record) -> fingerprints.put(id, record.fingerprint()));
+        return fingerprints;
+    }
+
+    /** Fingerprint is the sequence and size of the song record. */
+    @Override
+    public String getFingerprint(String id) {
+        Record record = index.get(id);
+        return record == null ? null : record.fingerprint();
+    }
+
+    @Override
+    public boolean exists(String id) {
+        return index.containsKey(id);
+    }
+
+    @Override
+    public ReadableByteChannel read(String id) throws IOException {
+        ByteBuffer contents = contents(id);
+        return new ReadableByteChannel() {
+            private boolean open = true;
+
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                if (!open) throw new ClosedChannelException();
+                if (!contents.hasRemaining()) return -1;
+                int count = Math.min(dst.remaining(), contents.remaining());
+                ByteBuffer slice = contents.duplicate();
+                slice.limit(slice.position() + count);
+                dst.put(slice);
+                contents.position(contents.position() + count);
+                return count;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return open;
+            }
+
+            @Override
+            public void close() {
+                open = false;
+            }
+        };
+    }
+
+    /** Modification time stored in the song record. */
+    @Override
+    public long getLastModified(String id) {
+        Record record = index.get(id);
+        return record == null ? -1 : record.modified;
+    }
+
+    /** Returns a read only buffer on contents of a song in its mapped segment. */
+    @Override
+    public ByteBuffer contents(String id) throws IOException {
+        int idLength = id.getBytes(StandardCharsets.UTF_8).length;
+        // record may move to another segment during compaction, it's looked up again
+        for (int attempt = 0; attempt < 3; attempt++) {
+            Record record = index.get(id);
+            if (record == null) break;
+            Segment segment = segments.get(record.segment);
+            if (segment == null) continue;
+
+            long start = record.contentsOffset(idLength);
+            ByteBuffer contents;
+            try {
+                contents = segment.map(start + record.contentsLength).duplicate();
+            } catch (ClosedChannelException e) {
+                // segment was just compacted
+                continue;
+            }
+            contents.position((int) start);
+            contents.limit((int) start + record.contentsLength);
+            return contents.slice();
+        }
+        throw new NoSuchFileException(id);
+    }
+
+    /** Contents are appended as a new record when the channel is closed, segment is synced according to durability. */
+    @Override
+    public WritableByteChannel write(String id, Durability durability) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(4 * 1024);
+        return new WritableByteChannel() {
+            private boolean open = true;
+
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                if (!open) throw new ClosedChannelException();
+                int count = src.remaining();
+                if (src.hasArray()) {
+                    bytes.write(src.array(), src.arrayOffset() + src.position(), count);
+                    src.position(src.limit());
+                } else {
+                    byte[] buffer = new byte[count];
+                    src.get(buffer);
+                    bytes.write(buffer);
+                }
+                return count;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return open;
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (!open) return;
+                open = false;
+                synchronized (PackedSongStore.this) {
+                    append(id, bytes.toByteArray(), nextSequence++, System.currentTimeMillis());
+                }
+                committer.written(durability);
+            }
+        };
+    }
+
+    @Override
+    public void delete(String id) throws IOException {
+        synchronized (this) {
+            if (!index.containsKey(id)) throw new NoSuchFileException(id);
+            append(id, null, nextSequence++, System.currentTimeMillis());
+        }
+        committer.written(Durability.SYNC);
+    }
+
+    @Override
+    public void sync() throws IOException {
+        committer.commit();
+    }
+
+    /** Appends all songs of another store, segments are synced once at the end. */
+    public synchronized int importSongs(SongStore source) throws IOException {
+        int count = 0;
+        try (Stream<String> ids = source.listSongIds()) {
+            for (String id : (Iterable<String>) ids::iterator) {
+                ByteBuffer contents;
+                try (ReadableByteChannel in = source.read(id)) {
+                    contents = SongStore.readFully(in);
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Can't import song '" + id + "'", e);
+                    continue;
+                }
+                long modified = source.getLastModified(id);
+                append(id, contents.array(), nextSequence++, modified < 0 ? System.currentTimeMillis() : modified);
+                count++;
+            }
+        }
+        active.channel.force(false);
+        return count;
+    }
+
+    /** Compacts sealed segments which have more dead bytes than the compaction ratio. */
+    public void compact() throws IOException {
+        for (Segment segment : segments.values()) {
+            boolean compact;
+            synchronized (this) {
+                compact = segment != active && segment.liveBytes < segment.size * (1 - compactionRatio);
+            }
+            if (compact) compact(segment);
+        }
+    }
+
+    /** Returns the number of segment files. */
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        committer.close();
+        closeSegments();
+    }
+
+    private synchronized void closeSegments() throws IOException {
+        if (compactor != null) compactor.shutdownNow();
+        for (Segment segment : segments.values()) {
+            segment.channel.close();
+        }
+    }
+
+    /** Syncs appended records, previous segments are synced when they're sealed. */
+    private void syncActiveSegment() throws IOException {
+        FileChannel channel;
+        synchronized (this) {
+            channel = active.channel;
+        }
+        channel.force(false);
+    }
+
+    /** Copies live records of a segment to the active one and deletes it. */
+    private void compact(Segment segment) throws IOException {
+        MappedByteBuffer map = segment.map(segment.size);
+        long copied = 0;
+        long offset = 0;
+        while (offset < segment.size) {
+            Record read = readRecord(map, segment.number, offset);
+            byte[] id = new byte[idLength(map, offset)];
+            ByteBuffer buffer = map.duplicate();
+            buffer.position((int) offset + HEADER_BYTES);
+            buffer.get(id);
+            String songId = new String(id, StandardCharsets.UTF_8);
+
+            synchronized (this) {
+                Record record = index.get(songId);
+                if (read.contentsLength == DELETED) {
+                    // deletion must hide records which may remain in older segments
+                    if (record == null && segments.firstKey() < segment.number) {
+                        append(songId, null, read.sequence, read.modified);
+                        copied++;
+                    }
+                } else if (record != null && record.segment == segment.number && record.offset == offset) {
+                    byte[] contents = new byte[read.contentsLength];
+                    buffer.get(contents);
+                    append(songId, contents, read.sequence, read.modified);
+                    copied++;
+                }
+            }
+            offset += read.length;
+        }
+
+        synchronized (this) {
+            active.channel.force(false);
+            segments.remove(segment.number);
+            segment.channel.close();
+        }
+        Files.delete(segment.path);
+        logger.info("Compacted songs segment " + segment.path.getFileName() + ", " + copied + " records copied");
+    }
+
+    /** Appends a record to the active segment and updates index, must be called with lock. */
+    private void append(String id, byte[] contents, long sequence, long modified) throws IOException {
+        byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+        if (idBytes.length > Short.MAX_VALUE) throw new IOException("Song id is too long: " + id);
+        int contentsLength = contents == null ? DELETED : contents.length;
+        int length = recordLength(idBytes.length, contentsLength);
+        if (active.size > 0 && active.size + length > segmentBytes) {
+            active = createSegment(active.number + 1);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.putInt(MAGIC).putLong(sequence).putLong(modified).putShort((short) idBytes.length).putInt(contentsLength);
+        buffer.put(idBytes);
+        if (contents != null) buffer.put(contents);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 4, length - 4 - CRC_BYTES);
+        buffer.putInt((int) crc.getValue());
+        buffer.flip();
+
+        long offset = active.size;
+        while (buffer.hasRemaining()) {
+            active.channel.write(buffer, offset + buffer.position());
+        }
+        active.size += length;
+
+        Record previous;
+        if (contents == null) {
+            previous = index.remove(id);
+        } else {
+            active.liveBytes += length;
+            previous = index.put(id, new Record(active.number, offset, length, sequence, contentsLength, modified));
+        }
+        if (previous != null) {
+            Segment previousSegment = segments.get(previous.segment);
+            if (previousSegment != null) previousSegment.liveBytes -= previous.length;
+        }
+    }
+
+    /** Scans segments to build index. */
+    private synchronized void open() throws IOException {
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(folder, "*" + SEGMENT_EXTENSION)) {
+            files.forEach(paths::add);
+        }
+        paths.sort(null);
+
+        // latest record of each song, including deletions
+        Map<String, Record> latest = new HashMap<>();
+        for (int i = 0; i < paths.size(); i++) {
+            Path path = paths.get(i);
+            String name = path.getFileName().toString();
+            int number = Integer.parseInt(name.substring(0, name.length() - SEGMENT_EXTENSION.length()));
+            Segment segment = new Segment(number, path, FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE));
+            segments.put(number, segment);
+            scan(segment, latest, i == paths.size() - 1);
+        }
+
+        latest.forEach((id, record) -> {
+            nextSequence = Math.max(nextSequence, record.sequence + 1);
+            if (record.contentsLength != DELETED) {
+                index.put(id, record);
+                segments.get(record.segment).liveBytes += record.length;
+            }
+        });
+
+        active = segments.isEmpty() ? createSegment(1) : segments.lastEntry().getValue();
+        logger.info("Opened " + index.size() + " songs in " + segments.size() + " segments from " + folder);
+    }
+
+    /** Reads records of a segment, keeping the ones with the highest sequence. */
+    private void scan(Segment segment, Map<String, Record> latest, boolean last) throws IOException {
+        MappedByteBuffer map = segment.map(segment.size);
+        long offset = 0;
+        while (offset < segment.size) {
+            if (validRecordLength(map, offset, segment.size) < 0) break;
+
+            Record record = readRecord(map, segment.number, offset);
+            byte[] id = new byte[idLength(map, offset)];
+            ByteBuffer buffer = map.duplicate();
+            buffer.position((int) offset + HEADER_BYTES);
+            buffer.get(id);
+            String songId = new String(id, StandardCharsets.UTF_8);
+
+            Record previous = latest.get(songId);
+            if (previous == null || previous.sequence < record.sequence) {
+                latest.put(songId, record);
+            }
+            offset += record.length;
+        }
+
+        if (offset < segment.size) {
+            if (last) {
+                logger.warning("Truncating incomplete record at " + offset + " in " + segment.path);
+                segment.channel.truncate(offset);
+                segment.channel.force(true);
+                segment.map = null;
+            } else {
+                logger.severe("Invalid record at " + offset + " in " + segment.path + ", following records are ignored");
+            }
+            segment.size = offset;
+        }
+    }
+
+    /** Reads the header of a valid record at offset. */
+    private static Record readRecord(ByteBuffer map, int segment, long offset) {
+        int start = (int) offset;
+        long sequence = map.getLong(start + 4);
+        long modified = map.getLong(start + 12);
+        int contentsLength = map.getInt(start + 22);
+        int length = recordLength(idLength(map, offset), contentsLength);
+        return new Record(segment, offset, length, sequence, contentsLength, modified);
+    }
+
+    private static int idLength(ByteBuffer map, long offset) {
+        return map.getShort((int) offset + 20);
+    }
+
+    /** Returns the length of the record at offset or -1 if it's incomplete or corrupted. */
+    private static int validRecordLength(ByteBuffer map, long offset, long size) {
+        if (offset + HEADER_BYTES + CRC_BYTES > size) return -1;
+        int start = (int) offset;
+        if (map.getInt(start) != MAGIC) return -1;
+        int idLength = map.getShort(start + 20);
+        int contentsLength = map.getInt(start + 22);
+        if (idLength < 0 || contentsLength < DELETED) return -1;
+        int length = recordLength(idLength, contentsLength);
+        if (offset + length > size) return -1;
+
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = map.duplicate();
+        buffer.position(start + 4);
+        buffer.limit(start + length - CRC_BYTES);
+        crc.update(buffer);
+        return map.getInt(start + length - CRC_BYTES) == (int) crc.getValue() ? length : -1;
+    }
+
+    private static int recordLength(int idLength, int contentsLength) {
+        return HEADER_BYTES + idLength + Math.max(0, contentsLength) + CRC_BYTES;
+    }
+
+    private Segment createSegment(int number) throws IOException {
+        if (active != null) {
+            active.channel.force(true);
+        }
+        Path path = folder.resolve(String.format("%08d%s", number, SEGMENT_EXTENSION));
+        Segment segment = new Segment(number, path, FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE));
+        segments.put(number, segment);
+        return segment;
+    }
+}
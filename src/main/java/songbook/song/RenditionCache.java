@@ -0,0 +1,113 @@
+package songbook.song;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of compressed song renditions.
+ * <p>
+ * Renditions of a song are stored together with the fingerprint of the song they were
+ * rendered from, they're only returned while the song keeps this fingerprint. Least recently
+ * used songs are evicted when the budget is exceeded.
+ */
+public class RenditionCache {
+
+    /** Estimated fixed cost of a song entry (key, map entries). */
+    private static final long ENTRY_OVERHEAD = 200;
+
+    private static class Entry {
+        final String fingerprint;
+        final Map<String, CompressedRendition> renditions = new HashMap<>(4);
+        long bytes;
+
+        Entry(String id, String fingerprint) {
+            this.fingerprint = fingerprint;
+            this.bytes = ENTRY_OVERHEAD + 2 * (id.length() + fingerprint.length());
+        }
+    }
+
+    private final long maxBytes;
+
+    private final LinkedHashMap<String, Entry> songs = new LinkedHashMap<>(64, 0.75f, true);
+
+    private long bytes = 0;
+
+    private long hits = 0;
+
+    private long misses = 0;
+
+    private long evictions = 0;
+
+    public RenditionCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /** Returns a rendition of song if it was rendered from a song with the given fingerprint. */
+    public synchronized CompressedRendition get(String id, String name, String fingerprint) {
+        Entry entry = songs.get(id);
+        CompressedRendition rendition = entry != null && entry.fingerprint.equals(fingerprint) ? entry.renditions.get(name) : null;
+        if (rendition == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return rendition;
+    }
+
+    public synchronized void put(String id, String name, String fingerprint, CompressedRendition rendition) {
+        Entry entry = songs.get(id);
+        if (entry == null || !entry.fingerprint.equals(fingerprint)) {
+            if (entry != null) bytes -= entry.bytes;
+            entry = new Entry(id, fingerprint);
+            songs.put(id, entry);
+            bytes += entry.bytes;
+        }
+        CompressedRendition previous = entry.renditions.put(name, rendition);
+        long delta = rendition.estimateBytes() + 2 * name.length() - (previous == null ? 0 : previous.estimateBytes() + 2 * name.length());
+        entry.bytes += delta;
+        bytes += delta;
+
+        Iterator<Map.Entry<String, Entry>> iterator = songs.entrySet().iterator();
+        while (bytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<String, Entry> eldest = iterator.next();
+            bytes -= eldest.getValue().bytes;
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+    /** Song was written or deleted: removes its renditions. */
+    public synchronized void invalidate(String id) {
+        Entry previous = songs.remove(id);
+        if (previous != null) bytes -= previous.bytes;
+    }
+
+    public synchronized void clear() {
+        songs.clear();
+        bytes = 0;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d songs (%d/%d KB), %d hits, %d misses, %d evictions",
+                songs.size(), bytes / 1024, maxBytes / 1024, hits, misses, evictions);
+    }
+}
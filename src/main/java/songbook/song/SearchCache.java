@@ -0,0 +1,107 @@
+package songbook.song;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of search pages for the current index generation.
+ * <p>
+ * Its size is estimated from the pages contents, least recently used pages are evicted
+ * when the budget is exceeded. The cache is cleared when the index generation changes,
+ * pages computed with a previous generation aren't stored.
+ */
+public class SearchCache {
+
+    /** Estimated fixed cost of an entry (key, map entry, page and arrays). */
+    private static final long ENTRY_OVERHEAD = 200;
+
+    private final long maxBytes;
+
+    private final LinkedHashMap<String, SearchPage> pages = new LinkedHashMap<>(64, 0.75f, true);
+
+    private long bytes = 0;
+
+    private volatile long generation = 0;
+
+    private long hits = 0;
+
+    private long misses = 0;
+
+    private long evictions = 0;
+
+    public SearchCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /** Generation to give to {@link #put(String, SearchPage, long)}, read it before searching. */
+    public long getGeneration() {
+        return generation;
+    }
+
+    /** Index changed: clears all pages. */
+    public synchronized void invalidate() {
+        generation++;
+        pages.clear();
+        bytes = 0;
+    }
+
+    public synchronized SearchPage get(String key) {
+        SearchPage page = pages.get(key);
+        if (page == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return page;
+    }
+
+    /** Stores a page computed with the given generation if it's still current. */
+    public synchronized void put(String key, SearchPage page, long generation) {
+        if (generation != this.generation) return;
+        long size = size(key, page);
+        if (size > maxBytes) return;
+
+        SearchPage previous = pages.put(key, page);
+        if (previous != null) bytes -= size(key, previous);
+        bytes += size;
+
+        Iterator<Map.Entry<String, SearchPage>> iterator = pages.entrySet().iterator();
+        while (bytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<String, SearchPage> eldest = iterator.next();
+            bytes -= size(eldest.getKey(), eldest.getValue());
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized int getSize() {
+        return pages.size();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    private static long size(String key, SearchPage page) {
+        return ENTRY_OVERHEAD + 2 * key.length() + page.estimateBytes();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d pages (%d/%d KB), %d hits, %d misses, %d evictions",
+                pages.size(), bytes / 1024, maxBytes / 1024, hits, misses, evictions);
+    }
+}
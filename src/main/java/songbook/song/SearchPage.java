@@ -0,0 +1,151 @@
+package songbook.song;
+
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.search.FieldDoc;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.util.BytesRef;
+import songbook.server.Server;
+import songbook.server.Templates;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * A page of search results with a cursor to get the next page. Results are read from
+ * doc values when the page is created, it doesn't depend on the index afterwards and can be cached.
+ */
+public class SearchPage {
+
+    /** Hits sorted by title, song id breaks ties so pages don't depend on document numbers */
+    static final Sort TITLE_SORT = new Sort(new SortField("title", SortField.Type.STRING), new SortField("id", SortField.Type.STRING));
+
+    /** Hits sorted by relevance, song id breaks ties */
+    static final Sort SCORE_SORT = new Sort(SortField.FIELD_SCORE, new SortField("id", SortField.Type.STRING));
+
+    private final String[] ids;
+
+    private final String[] titles;
+
+    private final String[] artists;
+
+    private final String nextCursor;
+
+    /** Reads the hits id, title and artists from doc values rather than loading stored documents. */
+    SearchPage(IndexSearcher searcher, ScoreDoc[] hits, int pageSize) throws IOException {
+        List<LeafReaderContext> leaves = searcher.getIndexReader().leaves();
+        SortedDocValues[] leafIds = new SortedDocValues[leaves.size()];
+        SortedDocValues[] leafTitles = new SortedDocValues[leaves.size()];
+        BinaryDocValues[] leafArtists = new BinaryDocValues[leaves.size()];
+
+        ids = new String[hits.length];
+        titles = new String[hits.length];
+        artists = new String[hits.length];
+        for (int i = 0; i < hits.length; i++) {
+            int leafIndex = ReaderUtil.subIndex(hits[i].doc, leaves);
+            int docId = hits[i].doc - leaves.get(leafIndex).docBase;
+            if (leafIds[leafIndex] == null) {
+                LeafReader leaf = leaves.get(leafIndex).reader();
+                leafIds[leafIndex] = DocValues.getSorted(leaf, "id");
+                leafTitles[leafIndex] = DocValues.getSorted(leaf, "title");
+                leafArtists[leafIndex] = DocValues.getBinary(leaf, "artists");
+            }
+            ids[i] = leafIds[leafIndex].get(docId).utf8ToString();
+            titles[i] = leafTitles[leafIndex].get(docId).utf8ToString();
+            artists[i] = leafArtists[leafIndex].get(docId).utf8ToString();
+        }
+        this.nextCursor = hits.length < pageSize ? null : encodeCursor(hits[hits.length - 1]);
+    }
+
+    /** Number of hits in this page */
+    public int size() {
+        return ids.length;
+    }
+
+    /** Cursor to use to get the page after this one, null if it's the last page */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    /** Writes the hits to out one by one */
+    public void write(Appendable out, String mimeType) throws IOException {
+        if (Server.MIME_TEXT_HTML.equals(mimeType)) {
+            Templates.startItems(out);
+        }
+        for (int i = 0; i < ids.length; i++) {
+            switch (mimeType) {
+                case Server.MIME_TEXT_HTML:
+                    Templates.songItem(out, ids[i], titles[i], artists[i]);
+                    break;
+                case Server.MIME_TEXT_PLAIN:
+                default:
+                    out.append(ids[i]).append("\n");
+                    break;
+            }
+        }
+        if (Server.MIME_TEXT_HTML.equals(mimeType)) {
+            Templates.endItems(out);
+        }
+    }
+
+    /** Estimated memory used by page contents. */
+    long estimateBytes() {
+        long bytes = nextCursor == null ? 0 : 40 + 2 * nextCursor.length();
+        for (int i = 0; i < ids.length; i++) {
+            bytes += 3 * 40 + 2 * (ids[i].length() + titles[i].length() + artists[i].length());
+        }
+        return bytes;
+    }
+
+    /**
+     * Encodes the position of a hit from its sort values, 'title~id' for hits sorted by title
+     * and 'scoreBits.id' for hits sorted by relevance. Document numbers change with merges, they
+     * aren't used.
+     */
+    static String encodeCursor(ScoreDoc hit) {
+        Object[] fields = ((FieldDoc) hit).fields;
+        String id = encode((BytesRef) fields[1]);
+        if (fields[0] instanceof Float) {
+            return Integer.toHexString(Float.floatToIntBits((Float) fields[0])) + "." + id;
+        }
+        return encode((BytesRef) fields[0]) + "~" + id;
+    }
+
+    /**
+     * Decodes a cursor created by {@link #encodeCursor(ScoreDoc)}.
+     * @param sorted true if hits are sorted by title.
+     * @param searcher searcher of the next page.
+     * @throws IllegalArgumentException if cursor is invalid.
+     */
+    static ScoreDoc decodeCursor(String cursor, boolean sorted, IndexSearcher searcher) {
+        if (cursor == null || cursor.isEmpty()) return null;
+        int separator = cursor.indexOf(sorted ? '~' : '.');
+        if (separator < 0) {
+            throw new IllegalArgumentException("Invalid cursor '" + cursor + "'");
+        }
+        String value = cursor.substring(0, separator);
+        BytesRef id = decode(cursor.substring(separator + 1));
+        Object first = sorted ? decode(value) : Float.intBitsToFloat(Integer.parseUnsignedInt(value, 16));
+        // the hit with the same values is the last one of previous page, it's skipped when
+        // its document isn't greater than the cursor one
+        int lastDoc = searcher.getIndexReader().maxDoc() - 1;
+        return new FieldDoc(lastDoc, Float.NaN, new Object[] { first, id });
+    }
+
+    private static String encode(BytesRef value) {
+        return value == null ? "" : Base64.getUrlEncoder().withoutPadding().encodeToString(BytesRef.deepCopyOf(value).bytes);
+    }
+
+    private static BytesRef decode(String value) {
+        return new BytesRef(Base64.getUrlDecoder().decode(value.getBytes(StandardCharsets.US_ASCII)));
+    }
+}
@@ -0,0 +1,116 @@
+package songbook.song;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of song contents or of their HTML fragments.
+ * <p>
+ * Each content is stored with the fingerprint of the file it was read from (or the content
+ * hash it was rendered from), it's only returned while the file keeps this fingerprint.
+ * Least recently used contents are evicted when the budget is exceeded.
+ */
+public class SongCache {
+
+    /** Estimated fixed cost of an entry (key, map entry, strings). */
+    private static final long ENTRY_OVERHEAD = 150;
+
+    private static class Entry {
+        final String contents;
+        final String fingerprint;
+
+        Entry(String contents, String fingerprint) {
+            this.contents = contents;
+            this.fingerprint = fingerprint;
+        }
+    }
+
+    private final long maxBytes;
+
+    private final LinkedHashMap<String, Entry> songs = new LinkedHashMap<>(64, 0.75f, true);
+
+    private long bytes = 0;
+
+    private long hits = 0;
+
+    private long misses = 0;
+
+    private long evictions = 0;
+
+    public SongCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /** Returns contents of song if they were read from a file with the given fingerprint. */
+    public synchronized String get(String id, String fingerprint) {
+        Entry entry = songs.get(id);
+        if (entry != null && entry.fingerprint.equals(fingerprint)) {
+            hits++;
+            return entry.contents;
+        }
+        misses++;
+        return null;
+    }
+
+    public synchronized void put(String id, String contents, String fingerprint) {
+        long size = size(id, contents, fingerprint);
+        if (size > maxBytes) {
+            invalidate(id);
+            return;
+        }
+
+        Entry previous = songs.put(id, new Entry(contents, fingerprint));
+        if (previous != null) bytes -= size(id, previous.contents, previous.fingerprint);
+        bytes += size;
+
+        Iterator<Map.Entry<String, Entry>> iterator = songs.entrySet().iterator();
+        while (bytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<String, Entry> eldest = iterator.next();
+            bytes -= size(eldest.getKey(), eldest.getValue().contents, eldest.getValue().fingerprint);
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+    /** Song was written or deleted: removes it. */
+    public synchronized void invalidate(String id) {
+        Entry previous = songs.remove(id);
+        if (previous != null) bytes -= size(id, previous.contents, previous.fingerprint);
+    }
+
+    public synchronized void clear() {
+        songs.clear();
+        bytes = 0;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized int getSize() {
+        return songs.size();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    private static long size(String id, String contents, String fingerprint) {
+        return ENTRY_OVERHEAD + 2 * (id.length() + contents.length() + fingerprint.length());
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d songs (%d/%d KB), %d hits, %d misses, %d evictions",
+                songs.size(), bytes / 1024, maxBytes / 1024, hits, misses, evictions);
+    }
+}
@@ -4,59 +4,266 @@ import songbook.server.ChannelUtil;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.Normalizer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 public class SongDatabase {
 
-    public static String SONG_EXTENSION = ".song";
+    public static String SONG_EXTENSION = FileSongStore.SONG_EXTENSION;
+
+    /** Rendition of the song file itself */
+    public static final String RAW_RENDITION = "raw";
+
+    /** Renders a song for a precompressed rendition. */
+    public interface Renderer {
+        byte[] render(String id, String contents) throws IOException;
+    }
 
     private final Logger logger = Logger.getLogger("Songbook");
 
-    private Path songDir;
+    private final SongStore store;
+
+    private final SongCache cache;
+
+    private final RenditionCache renditions;
+
+    /** Song HTML fragments, stored with the content hash they were rendered from. */
+    private final SongCache fragments;
+
+    private final Map<String, Renderer> renderers = new ConcurrentHashMap<>();
+
+    /** Content hash of songs with the fingerprint it was computed for. */
+    private final ConcurrentHashMap<String, String[]> contentHashes = new ConcurrentHashMap<>();
+
+    /** Ids of all songs, loaded from store at startup and maintained on writes and deletes. */
+    private final Set<String> ids = ConcurrentHashMap.newKeySet();
+
+    /** Generated ids of songs not written yet. */
+    private final Set<String> reservedIds = ConcurrentHashMap.newKeySet();
 
     public SongDatabase(Path songDir) throws IOException {
-        this.songDir = songDir;
+        this(new FileSongStore(songDir), 8 * 1024 * 1024, 16 * 1024 * 1024, 16 * 1024 * 1024);
+    }
 
-        if (Files.exists(songDir) == false) {
-            Files.createDirectories(songDir);
-        }
+    /**
+     * @param cacheBytes budget for cached song contents.
+     * @param renditionBytes budget for compressed renditions.
+     * @param fragmentBytes budget for rendered song HTML fragments.
+     */
+    public SongDatabase(SongStore store, long cacheBytes, long renditionBytes, long fragmentBytes) {
+        this.store = store;
+        this.cache = new SongCache(cacheBytes);
+        this.renditions = new RenditionCache(renditionBytes);
+        this.fragments = new SongCache(fragmentBytes);
+        loadIds();
+    }
+
+    public SongStore getStore() {
+        return store;
     }
 
+    /** Clears cached contents, fragments and renditions and reloads song ids from store. */
     public void clearCache() {
-        // TODO to implement when a cache will be needed.
+        cache.clear();
+        fragments.clear();
+        renditions.clear();
+        loadIds();
+    }
+
+    /** Cache of compressed renditions, gives hit, miss and eviction counts. */
+    public RenditionCache getRenditionCache() {
+        return renditions;
     }
 
+    /** Cache of song HTML fragments, gives hit, miss and eviction counts. */
+    public SongCache getFragmentCache() {
+        return fragments;
+    }
+
+    /**
+     * Returns the song rendered as an HTML fragment, or null if the song can't be read.
+     * It's rendered again only when the song contents change.
+     */
+    public String getHtmlFragment(String id) {
+        String hash = getContentHash(id);
+        if (hash == null) return null;
+        String fragment = fragments.get(id, hash);
+        if (fragment == null) {
+            String contents = getSongContents(id);
+            if (contents == null) return null;
+            fragment = SongRenderer.writeHtml(new StringBuilder(contents.length() * 2), contents).toString();
+            // contents read after hash may be newer, the fragment is rendered again on next change
+            fragments.put(id, fragment, hash);
+        }
+        return fragment;
+    }
+
+    /** Adds a rendition which is compressed when songs are written. */
+    public void addRendition(String name, Renderer renderer) {
+        renderers.put(name, renderer);
+    }
+
+    /**
+     * Returns a compressed rendition ({@link #RAW_RENDITION} or an added one) of a song,
+     * or null if the song can't be read. It's rendered again only when the song changes.
+     */
+    public CompressedRendition getRendition(String id, String name) {
+        String fingerprint = getFingerprint(id);
+        if (fingerprint == null) return null;
+        CompressedRendition rendition = renditions.get(id, name, fingerprint);
+        if (rendition == null) {
+            rendition = render(id, name);
+            // contents read after fingerprint may be newer, it's rendered again on next change
+            if (rendition != null) renditions.put(id, name, fingerprint, rendition);
+        }
+        return rendition;
+    }
+
+    private CompressedRendition render(String id, String name) {
+        byte[] data;
+        if (RAW_RENDITION.equals(name)) {
+            try {
+                ByteBuffer contents = store.contents(id);
+                data = new byte[contents.remaining()];
+                contents.get(data);
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Can't read song '" + id + "'", e);
+                return null;
+            }
+        } else {
+            Renderer renderer = renderers.get(name);
+            if (renderer == null) throw new IllegalArgumentException("Unknown rendition " + name);
+            String contents = getSongContents(id);
+            if (contents == null) return null;
+            try {
+                data = renderer.render(id, contents);
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Can't render '" + name + "' for song '" + id + "'", e);
+                return null;
+            }
+        }
+        return new CompressedRendition(data);
+    }
+
+    /** Renders the HTML fragment and all renditions of a written song. */
+    private void renderAll(String id) {
+        getHtmlFragment(id);
+        getRendition(id, RAW_RENDITION);
+        for (String name : renderers.keySet()) {
+            try {
+                getRendition(id, name);
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Can't render '" + name + "' for song '" + id + "'", e);
+            }
+        }
+    }
+
+    /** Cache of song contents, gives hit, miss and eviction counts. */
+    public SongCache getCache() {
+        return cache;
+    }
+
+    /** Lists ids of all songs from memory. */
     public Stream<String> listSongIds() {
+        return ids.stream();
+    }
+
+    /** Read only live view of song ids. */
+    public Set<String> getSongIds() {
+        return Collections.unmodifiableSet(ids);
+    }
+
+    public int getSongCount() {
+        return ids.size();
+    }
+
+    /** Returns the fingerprint of all songs by id. */
+    public Map<String, String> listFingerprints() {
         try {
-            return Files.list(songDir).map(SongDatabase::extractId);
+            return store.listFingerprints();
         } catch (IOException e) {
             logger.log(Level.SEVERE, "Can't list songs", e);
-            return Stream.empty();
+            return Collections.emptyMap();
+        }
+    }
+
+    /**
+     * Returns a fingerprint of the song which changes when the song is written,
+     * or null if the song can't be read.
+     */
+    public String getFingerprint(String id) {
+        return store.getFingerprint(id);
+    }
+
+    /** Returns last modification time of song in milliseconds or -1 if it doesn't exist. */
+    public long getLastModified(String id) {
+        return store.getLastModified(id);
+    }
+
+    /**
+     * Returns a SHA-1 hash of song contents (in hexadecimal) or null if the song can't be read.
+     * It's computed again only when the song fingerprint changes.
+     */
+    public String getContentHash(String id) {
+        String fingerprint = getFingerprint(id);
+        if (fingerprint == null) return null;
+        String[] cached = contentHashes.get(id);
+        if (cached != null && cached[0].equals(fingerprint)) return cached[1];
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(store.contents(id));
+            String hash = new BigInteger(1, digest.digest()).toString(16);
+            // contents read after fingerprint may be newer, the hash is computed again on next change
+            contentHashes.put(id, new String[] { fingerprint, hash });
+            return hash;
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Can't read song '" + id + "'", e);
+            return null;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
         }
     }
 
     public ReadableByteChannel readChannelForSong(String id) {
         try {
-            return Files.newByteChannel(getSongPath(id));
+            return store.read(id);
         } catch (IOException e) {
             logger.log(Level.SEVERE, "Can't read song '" + id + "'", e);
             return null;
         }
     }
 
+    /** Returns song contents from cache while the song file isn't modified. */
     public String getSongContents(String id) {
+        String fingerprint = getFingerprint(id);
+        if (fingerprint != null) {
+            String contents = cache.get(id, fingerprint);
+            if (contents != null) return contents;
+        }
         try {
             ReadableByteChannel channel = readChannelForSong(id);
-            return channel == null ? null : ChannelUtil.getStringContents(channel);
+            if (channel == null) return null;
+            String contents = ChannelUtil.getStringContents(channel);
+            // a change while reading gives a new fingerprint, these contents won't be used
+            if (fingerprint != null) cache.put(id, contents, fingerprint);
+            return contents;
         } catch (IOException e) {
             logger.log(Level.SEVERE, "Can't read song '" + id + "'", e);
             return null;
@@ -64,13 +271,53 @@ public class SongDatabase {
     }
 
     public WritableByteChannel writeChannelForSong(String id) {
+        return writeChannelForSong(id, Durability.SYNC);
+    }
+
+    /** Opens song for writing, closing the channel returns according to durability. */
+    public WritableByteChannel writeChannelForSong(String id, Durability durability) {
+        return writeChannelForSong(id, durability, true);
+    }
+
+    /**
+     * Opens song for writing.
+     * @param render true to render fragment and renditions when the channel is closed, else they're rendered when requested.
+     */
+    WritableByteChannel writeChannelForSong(String id, Durability durability, boolean render) {
         try {
-            Path path = getSongPath(id);
-            if (Files.exists(path) == false) {
-                Files.createDirectories(path.getParent());
-            }
-            return Files.newByteChannel(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.SYNC);
+            cache.invalidate(id);
+            renditions.invalidate(id);
+            WritableByteChannel channel = store.write(id, durability);
+            return new WritableByteChannel() {
+                @Override
+                public int write(ByteBuffer src) throws IOException {
+                    return channel.write(src);
+                }
+
+                @Override
+                public boolean isOpen() {
+                    return channel.isOpen();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    // contents read while writing may have been cached
+                    try {
+                        channel.close();
+                        ids.add(id);
+                    } finally {
+                        reservedIds.remove(id);
+                        cache.invalidate(id);
+                        renditions.invalidate(id);
+                        // fingerprint may not change with a rewrite of same length within timestamp granularity
+                        contentHashes.remove(id);
+                        fragments.invalidate(id);
+                    }
+                    if (render) renderAll(id);
+                }
+            };
         } catch (IOException e) {
+            reservedIds.remove(id);
             logger.log(Level.SEVERE, "Can't write or create song '" + id + "'", e);
             return null;
         }
@@ -78,7 +325,12 @@ public class SongDatabase {
 
     public boolean delete(String id) {
         try {
-            Files.delete(getSongPath(id));
+            store.delete(id);
+            ids.remove(id);
+            cache.invalidate(id);
+            renditions.invalidate(id);
+            fragments.invalidate(id);
+            contentHashes.remove(id);
             return true;
         } catch (IOException e) {
             logger.log(Level.SEVERE, "Can't delete song '" + id + "'", e);
@@ -86,13 +338,35 @@ public class SongDatabase {
         }
     }
 
-    /** Verify if song exists */
+    /** Makes all previous song writes durable. */
+    public void sync() throws IOException {
+        store.sync();
+    }
+
+    /** Songs were changed outside of the database: updates their ids and cached contents. */
+    public void songsChanged(Collection<String> changed) {
+        for (String id : changed) {
+            if (store.exists(id)) {
+                ids.add(id);
+            } else {
+                ids.remove(id);
+                fragments.invalidate(id);
+                contentHashes.remove(id);
+            }
+            cache.invalidate(id);
+            renditions.invalidate(id);
+        }
+    }
+
+    /** Verify if song exists, from memory */
     public boolean exists(String id) {
-        return Files.exists(getSongPath(id));
+        return ids.contains(id);
     }
 
     /**
-     * Generate a clean id using title and artist information.
+     * Generate a clean id using title and artist information. The id is reserved until
+     * the song is written with {@link #writeChannelForSong} or released with {@link #releaseId},
+     * concurrent calls get other ids.
      * @param title
      * @param artist
      * @return
@@ -100,34 +374,33 @@ public class SongDatabase {
     public String generateId(String title, String artist) {
         String id = encodeId(artist + "-" + title);
         int i = 1;
-        while (exists(id)) {
+        while (true) {
+            if (!exists(id) && reservedIds.add(id)) {
+                // song may have been written and released since exists was checked
+                if (!exists(id)) return id;
+                reservedIds.remove(id);
+            }
             id = encodeId(artist + "-" + title + "_" + i);
             i++;
         }
-        return id;
     }
 
-    /**
-     * Is this filePath correspond to a song file testing
-     * @param filePath
-     * @return
-     */
-    private static boolean isSong(Path filePath) {
-        return Files.isRegularFile(filePath) && filePath.toString().endsWith(SONG_EXTENSION);
+    /** Releases an id given by {@link #generateId} for a song which won't be written. */
+    public void releaseId(String id) {
+        reservedIds.remove(id);
     }
 
-    /**
-     * Assuming that file ending with '.song' extension
-     * @param songPath
-     * @return
-     */
-    private static String extractId(Path songPath) {
-        String filename = songPath.getFileName().toString();
-        return filename.substring(0, filename.length() - SONG_EXTENSION.length());
+    private void loadIds() {
+        Set<String> stored;
+        try (Stream<String> songs = store.listSongIds()) {
+            stored = songs.collect(Collectors.toSet());
+        }
+        ids.addAll(stored);
+        ids.retainAll(stored);
     }
 
-    private Path getSongPath(String id) {
-        return songDir.resolve(id + SONG_EXTENSION);
+    public void close() throws IOException {
+        store.close();
     }
 
     private static String encodeId(String id) {
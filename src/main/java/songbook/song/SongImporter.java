@@ -0,0 +1,380 @@
+package songbook.song;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Imports songs from a zip or tar archive (tar may be gzipped) read as a stream.
+ * <p>
+ * The archive is first copied to a temporary file, the index bulk isn't held while a slow
+ * client uploads it. Entries are read on the calling thread then parsed, validated and
+ * written on one thread per core. Songs are written without waiting for durability and synced once at the end,
+ * their documents are indexed as one bulk with one commit.
+ */
+public class SongImporter {
+
+    /** Larger entries aren't imported. */
+    public static final int MAX_SONG_BYTES = 1024 * 1024;
+
+    private static final int TAR_BLOCK = 512;
+
+    private final Logger logger = Logger.getLogger("Songbook");
+
+    private final SongDatabase songDb;
+
+    private final IndexDatabase indexDb;
+
+    public SongImporter(SongDatabase songDb, IndexDatabase indexDb) {
+        this.songDb = songDb;
+        this.indexDb = indexDb;
+    }
+
+    /** Reads an archive entry, returns false when there are no more entries. */
+    private interface EntryReader {
+        boolean next(EntryHandler handler) throws IOException;
+    }
+
+    private interface EntryHandler {
+        void handle(String name, InputStream contents) throws IOException;
+    }
+
+    /**
+     * Imports all songs (entries with song extension) of an archive, each song gets a new id
+     * generated from its title and artist. When the archive is truncated or invalid, songs
+     * read before are imported and the report is marked as failed.
+     */
+    public ImportReport importSongs(InputStream in) throws IOException {
+        Path archive = Files.createTempFile("songbook-import-", ".archive");
+        try {
+            Files.copy(in, archive, StandardCopyOption.REPLACE_EXISTING);
+            try (InputStream archiveIn = Files.newInputStream(archive)) {
+                return importArchive(archiveIn);
+            }
+        } finally {
+            Files.deleteIfExists(archive);
+        }
+    }
+
+    private ImportReport importArchive(InputStream in) throws IOException {
+        ImportReport report = new ImportReport();
+        Set<String> imported = ConcurrentHashMap.newKeySet();
+        EntryReader reader;
+        try {
+            reader = openArchive(in);
+        } catch (IOException e) {
+            report.fail(e.getMessage());
+            return report.done();
+        }
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        // bounds the entries read ahead of the writing threads
+        Semaphore readAhead = new Semaphore(threads * 4);
+        ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "import-songs");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        indexDb.beginBulk();
+        try {
+            try {
+                EntryHandler handler = (name, contents) -> {
+                    if (!isSong(name)) {
+                        report.skipped.incrementAndGet();
+                        return;
+                    }
+                    ImportReport.Entry entry = report.add(name);
+                    byte[] data;
+                    try {
+                        data = readEntry(contents);
+                    } catch (IOException e) {
+                        entry.error = "can't read entry";
+                        throw e;
+                    }
+                    if (data == null) {
+                        entry.error = "larger than " + MAX_SONG_BYTES + " bytes";
+                        return;
+                    }
+                    try {
+                        readAhead.acquire();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while importing songs");
+                    }
+                    executor.execute(() -> {
+                        try {
+                            importSong(entry, data, imported);
+                        } finally {
+                            readAhead.release();
+                        }
+                    });
+                };
+                try {
+                    while (reader.next(handler)) ;
+                } catch (InterruptedIOException e) {
+                    throw e;
+                } catch (IOException e) {
+                    // entries read before are imported
+                    logger.log(Level.WARNING, "Can't read imported archive", e);
+                    report.fail(e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage());
+                }
+            } finally {
+                executor.shutdown();
+                try {
+                    executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    executor.shutdownNow();
+                    Thread.currentThread().interrupt();
+                }
+            }
+            // songs are durable before the index refers to them
+            songDb.sync();
+        } finally {
+            indexDb.commitBulk(imported);
+        }
+        report.done();
+        logger.info("Imported songs: " + report);
+        return report;
+    }
+
+    /** Parses, validates and writes a song then adds it to the index bulk, called from importing threads. */
+    private void importSong(ImportReport.Entry entry, byte[] data, Set<String> imported) {
+        try {
+            String contents;
+            try {
+                contents = StandardCharsets.UTF_8.newDecoder()
+                        .onMalformedInput(CodingErrorAction.REPORT)
+                        .onUnmappableCharacter(CodingErrorAction.REPORT)
+                        .decode(ByteBuffer.wrap(data)).toString();
+            } catch (CharacterCodingException e) {
+                entry.error = "not UTF-8 text";
+                return;
+            }
+
+            Document document = SongUtils.indexSong(contents);
+            String title = document.get("title");
+            String artist = document.get("artist");
+            if (title == null || title.trim().isEmpty() || artist == null) {
+                entry.error = "missing title or artist";
+                return;
+            }
+
+            String id = songDb.generateId(title, artist);
+
+            // renditions are rendered when requested
+            WritableByteChannel channel = songDb.writeChannelForSong(id, Durability.DEFERRED, false);
+            if (channel == null) {
+                entry.error = "can't write song";
+                return;
+            }
+            try (WritableByteChannel out = channel) {
+                ByteBuffer buffer = ByteBuffer.wrap(data);
+                while (buffer.hasRemaining()) out.write(buffer);
+            }
+
+            document.add(new StringField("id", id, Field.Store.YES));
+            indexDb.addBulkDocument(document);
+            imported.add(id);
+            entry.id = id;
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.WARNING, "Can't import song '" + entry.getName() + "'", e);
+            entry.error = e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage();
+        }
+    }
+
+    private static boolean isSong(String name) {
+        String fileName = name.substring(name.lastIndexOf('/') + 1);
+        return fileName.endsWith(SongDatabase.SONG_EXTENSION) && !fileName.startsWith(".");
+    }
+
+    /** Reads an entry contents, returns null if it's too large. */
+    private static byte[] readEntry(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(8 * 1024);
+        byte[] buffer = new byte[8 * 1024];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            if (bytes.size() + read > MAX_SONG_BYTES) {
+                // skips the rest of the entry
+                while (in.read(buffer) >= 0) ;
+                return null;
+            }
+            bytes.write(buffer, 0, read);
+        }
+        return bytes.toByteArray();
+    }
+
+    /** Detects the archive format from its first bytes. */
+    private static EntryReader openArchive(InputStream in) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(in, 64 * 1024);
+        buffered.mark(2);
+        int first = buffered.read();
+        int second = buffered.read();
+        buffered.reset();
+        if (first == 0x1f && second == 0x8b) {
+            return tarReader(new BufferedInputStream(new GZIPInputStream(buffered, 64 * 1024), 64 * 1024));
+        } else if (first == 'P' && second == 'K') {
+            return zipReader(new ZipInputStream(buffered, StandardCharsets.UTF_8));
+        }
+        return tarReader(buffered);
+    }
+
+    private static EntryReader zipReader(ZipInputStream in) {
+        return handler -> {
+            ZipEntry entry = in.getNextEntry();
+            if (entry == null) return false;
+            if (!entry.isDirectory()) handler.handle(entry.getName(), in);
+            return true;
+        };
+    }
+
+    /** Reads ustar, GNU and pax tar regular files with their long names. */
+    private static EntryReader tarReader(InputStream in) {
+        byte[] header = new byte[TAR_BLOCK];
+        String[] longName = new String[1];
+        return handler -> {
+            if (!readBlock(in, header)) return false;
+            if (isZeros(header)) return false;
+
+            long size = parseOctal(header, 124, 12);
+            char type = (char) header[156];
+            String name = longName[0] != null ? longName[0] : tarName(header);
+            longName[0] = null;
+
+            BoundedInputStream contents = new BoundedInputStream(in, size);
+            if (type == 'L' || type == 'x') {
+                byte[] data = readEntry(contents);
+                if (data == null) throw new IOException("Invalid tar extended header");
+                String value = new String(data, StandardCharsets.UTF_8);
+                longName[0] = type == 'L' ? value.replace("\0", "") : paxPath(value);
+            } else if (type == '0' || type == '\0') {
+                handler.handle(name, contents);
+            }
+            // skips the rest of the entry and its padding
+            long padded = (size + TAR_BLOCK - 1) / TAR_BLOCK * TAR_BLOCK;
+            skipFully(in, contents.remaining + padded - size);
+            return true;
+        };
+    }
+
+    /** Returns the path of pax extended header records ('length path=value\n'), or null. */
+    private static String paxPath(String records) {
+        for (String record : records.split("\n")) {
+            int start = record.indexOf(" path=");
+            if (start >= 0) return record.substring(start + 6);
+        }
+        return null;
+    }
+
+    private static String tarName(byte[] header) {
+        String name = cString(header, 0, 100);
+        // ustar stores long paths in a prefix
+        if (cString(header, 257, 5).equals("ustar")) {
+            String prefix = cString(header, 345, 155);
+            if (!prefix.isEmpty()) name = prefix + "/" + name;
+        }
+        return name;
+    }
+
+    private static String cString(byte[] bytes, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && bytes[end] != 0) end++;
+        return new String(bytes, offset, end - offset, StandardCharsets.UTF_8);
+    }
+
+    private static long parseOctal(byte[] bytes, int offset, int length) throws IOException {
+        long value = 0;
+        for (int i = offset; i < offset + length && bytes[i] != 0; i++) {
+            byte b = bytes[i];
+            if (b == ' ') continue;
+            if (b < '0' || b > '7') throw new IOException("Invalid tar header");
+            value = value * 8 + (b - '0');
+        }
+        return value;
+    }
+
+    private static boolean isZeros(byte[] bytes) {
+        for (byte b : bytes) {
+            if (b != 0) return false;
+        }
+        return true;
+    }
+
+    /** Reads a whole block, returns false at the end of the stream. */
+    private static boolean readBlock(InputStream in, byte[] block) throws IOException {
+        int count = 0;
+        while (count < block.length) {
+            int read = in.read(block, count, block.length - count);
+            if (read < 0) {
+                if (count == 0) return false;
+                throw new EOFException("Truncated tar archive");
+            }
+            count += read;
+        }
+        return true;
+    }
+
+    private static void skipFully(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                if (in.read() < 0) throw new EOFException("Truncated tar archive");
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
+    /** Stream of a tar entry contents. */
+    private static class BoundedInputStream extends InputStream {
+        private final InputStream in;
+        long remaining;
+
+        BoundedInputStream(InputStream in, long size) {
+            this.in = in;
+            this.remaining = size;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) return -1;
+            int b = in.read();
+            if (b >= 0) remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (remaining <= 0) return -1;
+            int read = in.read(buffer, offset, (int) Math.min(length, remaining));
+            if (read > 0) remaining -= read;
+            return read;
+        }
+    }
+}
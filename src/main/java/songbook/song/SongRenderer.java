@@ -0,0 +1,358 @@
+package songbook.song;
+
+import java.io.IOException;
+
+/**
+ * Renders song text to HTML in one pass over its characters.
+ * <p>
+ * Lines are classified as header properties, chords, lyrics or recalls (chorus, intro, bridge)
+ * without splitting the text. Chords are recognized by a hand-written matcher which follows
+ * {@link SongUtils#CHORD_REGEXP}: a whole chord token is accepted like {@code matches()} and
+ * chords are highlighted in a chord line like {@code find()}, where the first alternative wins
+ * (e.g. 'Amin' gives chord 'Am'). The HTML is the same as the regular expression rendering.
+ */
+public class SongRenderer {
+
+    private static final String[] QUALITIES = { "m", "M", "min", "maj", "dim", "Δ", "°", "ø", "Ø" };
+
+    private static final String[] SUSPENSIONS = { "sus", "add" };
+
+    private static final String[] INTERVALS = { "2", "4", "5", "6", "7", "9", "10", "11", "13" };
+
+    private static final String[] ALTERATIONS = { "+", "aug", "alt" };
+
+    /** Parts of a chord, in the regular expression order */
+    private static final int ROOT = 0, ACCIDENTAL = 1, QUALITY = 2, EXTENSIONS = 3, ALTERATION = 4, BASS = 5, END = 6;
+
+    private final CharSequence song;
+
+    private final int length;
+
+    /** Current line bounds */
+    private int start, end;
+
+    private boolean header = true;
+
+    private boolean verse = false;
+
+    private SongRenderer(CharSequence song) {
+        this.song = song;
+        this.length = song.length();
+    }
+
+    public static <A extends Appendable> A writeHtml(A out, CharSequence song) {
+        try {
+            new SongRenderer(song).write(out);
+        } catch (IOException e) {
+            System.err.println("An appendable must not failed here!");
+        }
+        return out;
+    }
+
+    private void write(Appendable out) throws IOException {
+        nextLine(0);
+        out.append("<div class='song' itemscope='' itemtype='http://schema.org/MusicComposition'>\n");
+        out.append("<div class='song-title' itemprop='name'>");
+        out.append(song, start, end);
+        out.append("</div>\n");
+        out.append("<div class='song-header'>");
+        while (end < length) {
+            nextLine(end + (song.charAt(end) == '\r' && end + 1 < length && song.charAt(end + 1) == '\n' ? 2 : 1));
+            writeLine(out);
+        }
+        closeVerse(out);
+        out.append("</div>\n</div>\n");
+    }
+
+    /** Moves to line starting at index, lines end with '\n', '\r' or '\r\n'. */
+    private void nextLine(int index) {
+        start = index;
+        end = index;
+        while (end < length && song.charAt(end) != '\n' && song.charAt(end) != '\r') end++;
+    }
+
+    private void writeLine(Appendable out) throws IOException {
+        int colon = indexOf(':', start, end);
+        if (colon >= 0) {
+            writeProperty(out, colon);
+            return;
+        }
+
+        int trimmedStart = trimStart(start, end);
+        int trimmedEnd = trimEnd(trimmedStart, end);
+        if (trimmedStart == trimmedEnd) {
+            closeVerse(out);
+        } else if (isRecall(trimmedStart, trimmedEnd)) {
+            closeVerse(out);
+            out.append("<div class='song-");
+            out.append(song.subSequence(trimmedStart, trimmedEnd).toString().toLowerCase());
+            out.append("-recall'>");
+            out.append(song, start, end);
+            out.append("</div>");
+        } else if (isChordLine()) {
+            openVerse(out);
+            out.append("<div class='song-chords'>");
+            writeChords(out);
+            out.append("</div>\n");
+        } else {
+            openVerse(out);
+            out.append("<div class='song-line'>");
+            out.append(song, start, end);
+            out.append(" </div>\n");
+        }
+    }
+
+    /** Writes a 'name: value' header property or a verse title when value is empty. */
+    private void writeProperty(Appendable out, int colon) throws IOException {
+        String name = song.subSequence(start, colon).toString().toLowerCase().trim();
+        int valueStart = trimStart(colon + 1, end);
+        int valueEnd = trimEnd(valueStart, end);
+        boolean hasValue = valueStart < valueEnd;
+        if (hasValue) {
+            closeVerse(out);
+        } else {
+            endHeader(out);
+        }
+        out.append("<div class='song-");
+        out.append(name.replace(" ", "-"));
+        out.append("'>\n");
+        out.append("<span class='song-metadata-name'>");
+        out.append(name);
+        out.append(": </span>\n");
+        if (hasValue) {
+            out.append("<span class='song-metadata-value'");
+            switch (name) {
+                case "author":
+                case "artist":
+                    out.append(" itemprop='composer'");
+                    break;
+                case "album":
+                    out.append(" itemprop='inAlbum'");
+                    break;
+                case "tone":
+                case "key":
+                    out.append(" itemprop='musicalKey'");
+                    break;
+            }
+            out.append("data-name='");
+            out.append(name);
+            out.append("'>");
+            boolean isLink = name.equals("video") || name.equals("audio") || name.equals("link");
+            if (isLink) {
+                out.append("<a href='");
+                out.append(song, valueStart, valueEnd);
+                out.append("'>");
+            }
+            out.append(song, valueStart, valueEnd);
+            if (isLink) {
+                out.append("</a>");
+            }
+            out.append("</span>\n");
+            out.append("</div>\n");
+        } else {
+            // start of verse, its div isn't closed
+            verse = true;
+        }
+    }
+
+    private void endHeader(Appendable out) throws IOException {
+        if (header) {
+            header = false;
+            out.append("</div>\n<div class='song-content'>\n");
+        }
+    }
+
+    private void openVerse(Appendable out) throws IOException {
+        if (!verse) {
+            endHeader(out);
+            out.append("<div class='song-verse'>");
+            verse = true;
+        }
+    }
+
+    private void closeVerse(Appendable out) throws IOException {
+        if (verse) {
+            out.append("</div>\n");
+            verse = false;
+        }
+    }
+
+    private boolean isRecall(int from, int to) {
+        int count = to - from;
+        // lower case conversion depends on locale like when it's compared
+        if (count != 5 && count != 6) return false;
+        String line = song.subSequence(from, to).toString().toLowerCase();
+        return line.equals("chorus") || line.equals("intro") || line.equals("bridge");
+    }
+
+    /** A chord line only has chords and repeats ('(x2)') separated by spaces or bars. */
+    private boolean isChordLine() {
+        int index = start;
+        while (index < end) {
+            char c = song.charAt(index);
+            if (c == ' ' || c == '|') {
+                index++;
+                continue;
+            }
+            int tokenEnd = index;
+            while (tokenEnd < end && song.charAt(tokenEnd) != ' ' && song.charAt(tokenEnd) != '|') tokenEnd++;
+            if (!isRepeat(index, tokenEnd) && !matchesChord(ROOT, index, tokenEnd)) return false;
+            index = tokenEnd;
+        }
+        return true;
+    }
+
+    private boolean isRepeat(int from, int to) {
+        if (to - from < 4 || song.charAt(from) != '(' || song.charAt(from + 1) != 'x' || song.charAt(to - 1) != ')') return false;
+        for (int i = from + 2; i < to - 1; i++) {
+            if (song.charAt(i) < '0' || song.charAt(i) > '9') return false;
+        }
+        return true;
+    }
+
+    /** Writes the chord line with chords in spans. */
+    private void writeChords(Appendable out) throws IOException {
+        int written = start;
+        int index = start;
+        while (index < end) {
+            int chordEnd = isNote(song.charAt(index)) ? findChordEnd(index) : -1;
+            if (chordEnd > index) {
+                out.append(song, written, index);
+                out.append("<span class='song-chord'>");
+                out.append(song, index, chordEnd);
+                out.append("</span>");
+                index = chordEnd;
+                written = chordEnd;
+            } else {
+                index++;
+            }
+        }
+        out.append(song, written, end);
+    }
+
+    /**
+     * Returns true if a chord spans exactly from index to 'to', starting at given chord part.
+     * Each optional part is tried with all its alternatives, then skipped.
+     */
+    private boolean matchesChord(int part, int index, int to) {
+        switch (part) {
+            case ROOT:
+                return index < to && isNote(song.charAt(index)) && matchesChord(ACCIDENTAL, index + 1, to);
+            case ACCIDENTAL:
+                return (isAccidental(index, to) && matchesChord(QUALITY, index + 1, to)) || matchesChord(QUALITY, index, to);
+            case QUALITY:
+                for (String quality : QUALITIES) {
+                    if (startsWith(quality, index, to) && matchesChord(EXTENSIONS, index + quality.length(), to)) return true;
+                }
+                return matchesChord(EXTENSIONS, index, to);
+            case EXTENSIONS:
+                return matchesExtension(index, to) || matchesChord(ALTERATION, index, to);
+            case ALTERATION:
+                for (String alteration : ALTERATIONS) {
+                    if (startsWith(alteration, index, to) && matchesChord(BASS, index + alteration.length(), to)) return true;
+                }
+                return matchesChord(BASS, index, to);
+            case BASS:
+                if (index + 1 < to && song.charAt(index) == '/' && isNote(song.charAt(index + 1))) {
+                    if (isAccidental(index + 2, to) && index + 3 == to) return true;
+                    if (index + 2 == to) return true;
+                }
+                return index == to;
+            default:
+                return index == to;
+        }
+    }
+
+    /** Matches one or more non empty '(sus|add)?(b|#)?(interval)?' groups followed by the end of chord. */
+    private boolean matchesExtension(int index, int to) {
+        for (int suspension = 0; suspension <= SUSPENSIONS.length; suspension++) {
+            int afterSuspension = index;
+            if (suspension < SUSPENSIONS.length) {
+                if (!startsWith(SUSPENSIONS[suspension], index, to)) continue;
+                afterSuspension += SUSPENSIONS[suspension].length();
+            }
+            for (int accidental = 0; accidental < 2; accidental++) {
+                int afterAccidental = afterSuspension;
+                if (accidental == 0) {
+                    if (!isAccidental(afterSuspension, to)) continue;
+                    afterAccidental++;
+                }
+                for (int interval = 0; interval <= INTERVALS.length; interval++) {
+                    int afterInterval = afterAccidental;
+                    if (interval < INTERVALS.length) {
+                        if (!startsWith(INTERVALS[interval], afterAccidental, to)) continue;
+                        afterInterval += INTERVALS[interval].length();
+                    }
+                    if (afterInterval > index && matchesChord(EXTENSIONS, afterInterval, to)) return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the end of the chord found at index like the regular expression does:
+     * each optional part takes its first matching alternative.
+     */
+    private int findChordEnd(int index) {
+        // root
+        index++;
+        if (isAccidental(index, end)) index++;
+        index = skipFirst(QUALITIES, index);
+        while (true) {
+            int group = skipFirst(SUSPENSIONS, index);
+            if (isAccidental(group, end)) group++;
+            group = skipFirst(INTERVALS, group);
+            if (group == index) break;
+            index = group;
+        }
+        index = skipFirst(ALTERATIONS, index);
+        if (index + 1 < end && song.charAt(index) == '/' && isNote(song.charAt(index + 1))) {
+            index += 2;
+            if (isAccidental(index, end)) index++;
+        }
+        return index;
+    }
+
+    /** Skips the first alternative found at index. */
+    private int skipFirst(String[] alternatives, int index) {
+        for (String alternative : alternatives) {
+            if (startsWith(alternative, index, end)) return index + alternative.length();
+        }
+        return index;
+    }
+
+    private boolean startsWith(String text, int index, int to) {
+        if (index + text.length() > to) return false;
+        for (int i = 0; i < text.length(); i++) {
+            if (song.charAt(index + i) != text.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private boolean isAccidental(int index, int to) {
+        return index < to && (song.charAt(index) == 'b' || song.charAt(index) == '#');
+    }
+
+    private static boolean isNote(char c) {
+        return c >= 'A' && c <= 'G';
+    }
+
+    private int indexOf(char c, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (song.charAt(i) == c) return i;
+        }
+        return -1;
+    }
+
+    /** Same as {@link String#trim()}. */
+    private int trimStart(int from, int to) {
+        while (from < to && song.charAt(from) <= ' ') from++;
+        return from;
+    }
+
+    private int trimEnd(int from, int to) {
+        while (to > from && song.charAt(to - 1) <= ' ') to--;
+        return to;
+    }
+}
@@ -0,0 +1,94 @@
+package songbook.song;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Storage of song files by id, used by {@link SongDatabase}.
+ */
+public interface SongStore extends Closeable {
+
+    Stream<String> listSongIds();
+
+    /** Returns the fingerprint of all songs by id. */
+    Map<String, String> listFingerprints() throws IOException;
+
+    /**
+     * Returns a fingerprint of the song which changes when the song is written,
+     * or null if the song doesn't exist.
+     */
+    String getFingerprint(String id);
+
+    boolean exists(String id);
+
+    /** Returns the last modification time of song in milliseconds or -1 if it doesn't exist. */
+    long getLastModified(String id);
+
+    /** Opens song for reading, fails with NoSuchFileException if it doesn't exist. */
+    ReadableByteChannel read(String id) throws IOException;
+
+    /** Returns song contents in a buffer, fails with NoSuchFileException if it doesn't exist. */
+    default ByteBuffer contents(String id) throws IOException {
+        try (ReadableByteChannel channel = read(id)) {
+            return readFully(channel);
+        }
+    }
+
+    /** Opens song for writing, its contents are replaced by the written bytes when the channel is closed. */
+    default WritableByteChannel write(String id) throws IOException {
+        return write(id, Durability.SYNC);
+    }
+
+    /**
+     * Opens song for writing, its contents are replaced by the written bytes when the channel
+     * is closed, closing returns according to durability.
+     */
+    WritableByteChannel write(String id, Durability durability) throws IOException;
+
+    /** Deletes song, fails with NoSuchFileException if it doesn't exist. */
+    void delete(String id) throws IOException;
+
+    /** Makes all previous writes durable, including the deferred ones. */
+    void sync() throws IOException;
+
+    /** Copies all songs from a store to another one, returns the number of copied songs. */
+    static int copy(SongStore from, SongStore to) throws IOException {
+        Logger logger = Logger.getLogger("Songbook");
+        int count = 0;
+        try (Stream<String> ids = from.listSongIds()) {
+            for (String id : (Iterable<String>) ids::iterator) {
+                ByteBuffer contents;
+                try (ReadableByteChannel in = from.read(id)) {
+                    contents = readFully(in);
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Can't copy song '" + id + "'", e);
+                    continue;
+                }
+                try (WritableByteChannel out = to.write(id)) {
+                    while (contents.hasRemaining()) out.write(contents);
+                }
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /** Reads all bytes from channel, it isn't closed. */
+    static ByteBuffer readFully(ReadableByteChannel channel) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(4 * 1024);
+        ByteBuffer buffer = ByteBuffer.allocate(8 * 1024);
+        while (channel.read(buffer) != -1) {
+            bytes.write(buffer.array(), 0, buffer.position());
+            buffer.clear();
+        }
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+}
@@ -0,0 +1,44 @@
+package songbook.song;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Imports a songs folder into a packed store, exports a packed store to a songs folder
+ * or moves songs of a folder to shards.
+ * <p>
+ * Usage: 'import &lt;songs folder&gt; &lt;packed folder&gt;', 'export &lt;packed folder&gt; &lt;songs folder&gt;'
+ * or 'shard &lt;songs folder&gt;'. The server must be stopped for import and export, songs can be
+ * moved to shards while it runs with the sharded layout.
+ */
+public class SongStoreMigration {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 2 && args[0].equals("shard")) {
+            long start = System.currentTimeMillis();
+            try (FileSongStore store = new FileSongStore(Paths.get(args[1]), 1000, 100, true)) {
+                int count = store.moveToShards();
+                System.out.println(count + " songs moved to shards in " + args[1] + " in " + (System.currentTimeMillis() - start) + " ms");
+            }
+            return;
+        }
+        if (args.length != 3 || !(args[0].equals("import") || args[0].equals("export"))) {
+            System.err.println("Usage: import <songs folder> <packed folder> | export <packed folder> <songs folder> | shard <songs folder>");
+            System.exit(1);
+            return;
+        }
+        boolean importing = args[0].equals("import");
+        Path from = Paths.get(args[1]);
+        Path to = Paths.get(args[2]);
+
+        long start = System.currentTimeMillis();
+        try (
+            SongStore source = importing ? new FileSongStore(from) : new PackedSongStore(from, 64 * 1024 * 1024, 0.5, 0, 1000, 100);
+            SongStore target = importing ? new PackedSongStore(to, 64 * 1024 * 1024, 0.5, 0, 1000, 100) : new FileSongStore(to)
+        ) {
+            int count = importing ? ((PackedSongStore) target).importSongs(source) : SongStore.copy(source, target);
+            System.out.println(count + " songs copied from " + from + " to " + to + " in " + (System.currentTimeMillis() - start) + " ms");
+        }
+    }
+}
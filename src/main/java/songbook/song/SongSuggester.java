@@ -0,0 +1,221 @@
+package songbook.song;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.analysis.util.CharArraySet;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.suggest.InputIterator;
+import org.apache.lucene.search.suggest.Lookup.LookupResult;
+import org.apache.lucene.search.suggest.analyzing.AnalyzingInfixSuggester;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import songbook.server.Server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In memory infix suggester for song titles and artists. Each suggestion is weighted
+ * by the number of songs using it, it's updated when a song is indexed or removed.
+ */
+public class SongSuggester implements Closeable {
+
+    public static final String TITLE = "title";
+
+    public static final String ARTIST = "artist";
+
+    private static final BytesRef TITLE_CONTEXT = new BytesRef(TITLE);
+
+    private static final BytesRef ARTIST_CONTEXT = new BytesRef(ARTIST);
+
+    private final AnalyzingInfixSuggester suggester;
+
+    /** Lookups can't run while the suggester is built. */
+    private final ReadWriteLock buildLock = new ReentrantReadWriteLock();
+
+    /** Suggestions given by each song: title then artists. */
+    private final Map<String, String[]> songs = new HashMap<>();
+
+    /** Number of songs using a text as title */
+    private final Map<String, Integer> titleCounts = new HashMap<>();
+
+    /** Number of songs using a text as artist */
+    private final Map<String, Integer> artistCounts = new HashMap<>();
+
+    public SongSuggester() throws IOException {
+        suggester = new AnalyzingInfixSuggester(new RAMDirectory(), new StandardAnalyzer(CharArraySet.EMPTY_SET));
+        suggester.build(InputIterator.EMPTY);
+    }
+
+    /** Replaces all suggestions with titles and artists of songs in index. */
+    public synchronized void rebuild(IndexSearcher searcher) throws IOException {
+        songs.clear();
+        titleCounts.clear();
+        artistCounts.clear();
+        Set<String> fields = new HashSet<>(Arrays.asList("id", "title", "artist"));
+        for (LeafReaderContext leaf : searcher.getIndexReader().leaves()) {
+            LeafReader reader = leaf.reader();
+            Bits liveDocs = reader.getLiveDocs();
+            for (int docId = 0; docId < reader.maxDoc(); docId++) {
+                if (liveDocs == null || liveDocs.get(docId)) {
+                    Document document = reader.document(docId, fields);
+                    String[] suggestions = suggestions(document.get("title"), document.getValues("artist"));
+                    songs.put(document.get("id"), suggestions);
+                    count(suggestions, 1);
+                }
+            }
+        }
+
+        Set<String> texts = new HashSet<>(titleCounts.keySet());
+        texts.addAll(artistCounts.keySet());
+        Iterator<String> iterator = texts.iterator();
+        buildLock.writeLock().lock();
+        try {
+            build(iterator);
+        } finally {
+            buildLock.writeLock().unlock();
+        }
+    }
+
+    private void build(Iterator<String> iterator) throws IOException {
+        suggester.build(new InputIterator() {
+            private String current;
+
+            @Override
+            public BytesRef next() {
+                current = iterator.hasNext() ? iterator.next() : null;
+                return current == null ? null : new BytesRef(current);
+            }
+
+            @Override
+            public long weight() {
+                return titleCounts.getOrDefault(current, 0) + artistCounts.getOrDefault(current, 0);
+            }
+
+            @Override
+            public BytesRef payload() {
+                return null;
+            }
+
+            @Override
+            public boolean hasPayloads() {
+                return false;
+            }
+
+            @Override
+            public Set<BytesRef> contexts() {
+                return contextsOf(current);
+            }
+
+            @Override
+            public boolean hasContexts() {
+                return true;
+            }
+        });
+    }
+
+    /** Updates suggestions for an added or modified song. */
+    public synchronized void update(String id, String title, String[] artists) throws IOException {
+        String[] suggestions = suggestions(title, artists);
+        String[] previous = songs.put(id, suggestions);
+        if (previous != null) {
+            if (Arrays.equals(previous, suggestions)) return;
+            count(previous, -1);
+        }
+        count(suggestions, 1);
+        updateSuggester(previous, suggestions);
+    }
+
+    /** Updates suggestions for a removed song. */
+    public synchronized void remove(String id) throws IOException {
+        String[] previous = songs.remove(id);
+        if (previous != null) {
+            count(previous, -1);
+            updateSuggester(previous, null);
+        }
+    }
+
+    /**
+     * Returns the most used titles and artists containing words starting with the words of prefix.
+     * @param type {@link #TITLE}, {@link #ARTIST} or null for both.
+     */
+    public List<LookupResult> lookup(String prefix, String type, int count) throws IOException {
+        Set<BytesRef> contexts = type == null ? null : Collections.singleton(new BytesRef(type));
+        List<LookupResult> results;
+        buildLock.readLock().lock();
+        try {
+            results = suggester.lookup(prefix, contexts, count, true, false);
+        } finally {
+            buildLock.readLock().unlock();
+        }
+        // suggestions no longer used stay with a 0 weight, they are sorted last
+        int used = 0;
+        while (used < results.size() && results.get(used).value > 0) used++;
+        return used == results.size() ? results : results.subList(0, used);
+    }
+
+    /** Writes suggestions as a JSON array of {text, type} or as text lines */
+    public void write(List<LookupResult> results, Appendable out, String mimeType) throws IOException {
+        if (Server.MIME_APPLICATION_JSON.equals(mimeType)) {
+            out.append('[');
+            for (int i = 0; i < results.size(); i++) {
+                LookupResult result = results.get(i);
+                if (i > 0) out.append(',');
+                out.append("{\"text\":");
+                SongUtils.appendJsonString(out, result.key);
+                out.append(",\"type\":\"");
+                out.append(result.contexts != null && result.contexts.contains(TITLE_CONTEXT) ? TITLE : ARTIST);
+                out.append("\"}");
+            }
+            out.append(']');
+        } else {
+            for (LookupResult result : results) {
+                out.append(result.key).append('\n');
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        suggester.close();
+    }
+
+    private void updateSuggester(String[] previous, String[] suggestions) throws IOException {
+        Set<String> texts = new HashSet<>();
+        if (previous != null) texts.addAll(Arrays.asList(previous));
+        if (suggestions != null) texts.addAll(Arrays.asList(suggestions));
+        for (String text : texts) {
+            long weight = titleCounts.getOrDefault(text, 0) + artistCounts.getOrDefault(text, 0);
+            suggester.update(new BytesRef(text), contextsOf(text), weight, null);
+        }
+        suggester.refresh();
+    }
+
+    private Set<BytesRef> contextsOf(String text) {
+        Set<BytesRef> contexts = new HashSet<>();
+        if (titleCounts.containsKey(text)) contexts.add(TITLE_CONTEXT);
+        if (artistCounts.containsKey(text)) contexts.add(ARTIST_CONTEXT);
+        return contexts;
+    }
+
+    /** Adds delta to the counts of a song suggestions. */
+    private void count(String[] suggestions, int delta) {
+        for (int i = 0; i < suggestions.length; i++) {
+            Map<String, Integer> counts = i == 0 ? titleCounts : artistCounts;
+            counts.merge(suggestions[i], delta, (a, b) -> a + b == 0 ? null : a + b);
+        }
+    }
+
+    private static String[] suggestions(String title, String[] artists) {
+        String[] suggestions = new String[artists.length + 1];
+        suggestions[0] = title == null ? "" : title;
+        System.arraycopy(artists, 0, suggestions, 1, artists.length);
+        return suggestions;
+    }
+}
@@ -1,6 +1,7 @@
 package songbook.song;
 
 import org.apache.lucene.document.*;
+import org.apache.lucene.facet.sortedset.SortedSetDocValuesFacetField;
 import org.apache.lucene.util.BytesRef;
 
 import java.io.IOException;
@@ -33,6 +34,7 @@ public class SongUtils {
         document.add(new SortedDocValuesField("title", new BytesRef(songLines[0])));
         document.add(new StringField("title", songLines[0], Field.Store.YES));
 
+        StringBuilder artists = new StringBuilder();
         for (int i = 1; i < songLines.length; i++) {
 			String line = songLines[i].trim();
             int indexOfCol = line.indexOf(":");
@@ -43,9 +45,17 @@ public class SongUtils {
 				if (!propValue.isEmpty()) {
 
                     document.add(new StringField(propName, propValue, Field.Store.YES));
+                    // a facet needs a name, ': value' lines are only indexed
+                    if (!propName.isEmpty()) document.add(new SortedSetDocValuesFacetField(propName, propValue));
+                    if ("artist".equals(propName)) {
+                        if (artists.length() > 0) artists.append(", ");
+                        artists.append(propValue);
+                    }
 				}
 			}
 		}
+        // artists as displayed in results lists
+        document.add(new BinaryDocValuesField("artists", new BytesRef(artists)));
 		return document;
 	}
 
@@ -53,141 +63,26 @@ public class SongUtils {
 		return songData.replace("\r\n", "\n").replace("\r", "\n").split("\n");
 	}
 
-	public static <A extends Appendable> A writeHtml(A w, String songData) {
-		try {
-			String[] songLines = SongUtils.getSongLines(songData);
-			w.append("<div class='song' itemscope='' itemtype='http://schema.org/MusicComposition'>\n");
-
-			w.append("<div class='song-title' itemprop='name'>");
-			w.append(songLines[0]);
-			w.append("</div>\n");
-            w.append("<div class='song-header'>");
-            boolean songHeader = true;
-			boolean verse = false;
-			for (int i = 1; i < songLines.length; i++) {
-				String line = songLines[i];
-				String lowercaseLine = line.trim().toLowerCase();
-				int indexOfCol = line.indexOf(":");
-
-				if (indexOfCol != -1) {
-					String propName = line.substring(0, indexOfCol).toLowerCase().trim();
-					String propValue = line.substring(indexOfCol + 1).trim();
-					if (!propValue.isEmpty()) {
-						if (verse) {
-							// close verse
-							w.append("</div>\n");
-							verse = false;
-						}
-					} else {
-                        if (songHeader) {
-                            songHeader = false;
-                            w.append("</div>\n<div class='song-content'>\n");
-                        }
-                    }
-					w.append("<div class='song-");
-					w.append(propName.replace(" ", "-"));
-					w.append("'>\n");
-					w.append("<span class='song-metadata-name'>");
-					w.append(propName);
-					w.append(": </span>\n");
-					if (!propValue.isEmpty()) {
-						w.append("<span class='song-metadata-value'");
-						switch (propName) {
-							case "author":
-							case "artist":
-								w.append(" itemprop='composer'");
-								break;
-							case "album":
-								w.append(" itemprop='inAlbum'");
-								break;
-							case "tone":case "key":
-								w.append(" itemprop='musicalKey'");
-								break;
-						}
-
-						w.append("data-name='");
-						w.append(propName);
-						w.append("'>");
-						boolean isLink = propName.equals("video") || propName.equals("audio") || propName.equals("link");
-						if (isLink) {
-							w.append("<a href='");
-							w.append(propValue);
-							w.append("'>");
-						}
-						w.append(propValue);
-						if (isLink) {
-							w.append("</a>");
-						}
-						w.append("</span>\n");
-						w.append("</div>\n");
+	/** Appends text as a JSON string literal. */
+	public static void appendJsonString(Appendable out, CharSequence text) throws IOException {
+		out.append('"');
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			switch (c) {
+				case '"': out.append("\\\""); break;
+				case '\\': out.append("\\\\"); break;
+				case '\n': out.append("\\n"); break;
+				case '\r': out.append("\\r"); break;
+				case '\t': out.append("\\t"); break;
+				default:
+					if (c < 0x20) {
+						out.append(String.format("\\u%04x", (int) c));
 					} else {
-						// Start of verse don't close div
-						verse = true;
-					}
-
-				} else if (lowercaseLine.isEmpty()) {
-					if (verse) {
-						// close verse
-						w.append("</div>\n");
-						verse = false;
+						out.append(c);
 					}
-				} else if ("chorus".equals(lowercaseLine.toLowerCase())
-						|| "intro".equals(lowercaseLine.toLowerCase())
-						|| "bridge".equals(lowercaseLine.toLowerCase())) { // chorus, intro, or bridge recall
-					if (verse) {
-						// close verse
-						w.append("</div>\n");
-						verse = false;
-					}
-					w.append("<div class='song-" + lowercaseLine +"-recall'>");
-					w.append(line);
-					w.append("</div>");
-				} else {
-					String[] tokens = line.replace("|", " ").split(" ");
-					boolean isLineChords = true;
-					for (int j = 0; isLineChords && j < tokens.length; j++) {
-						if (!tokens[j].isEmpty()) {
-							isLineChords = isLineChords && (CHORD_REGEXP.matcher(tokens[j]).matches() || REPEAT_REGEXP.matcher(tokens[j]).matches());
-						}
-					}
-					if (isLineChords) {
-						if (!verse) {
-                            if (songHeader) {
-                                songHeader = false;
-                                w.append("</div>\n<div class='song-content'>\n");
-                            }
-							w.append("<div class='song-verse'>");
-							verse = true;
-						}
-						w.append("<div class='song-chords'>");
-						w.append(CHORD_REGEXP.matcher(line).replaceAll("<span class='song-chord'>$0</span>"));
-						w.append("</div>\n");
-					} else {
-						if (!verse) {
-                            if (songHeader) {
-                                songHeader = false;
-                                w.append("</div>\n<div class='song-content'>\n");
-                            }
-							w.append("<div class='song-verse'>");
-							verse = true;
-						}
-						w.append("<div class='song-line'>");
-						w.append(line);
-						w.append(" </div>\n");
-					}
-				}
-
-			}
-			if (verse) {
-				// close verse
-				w.append("</div>\n");
-				verse = false;
 			}
-			w.append("</div>\n</div>\n");
-		} catch (IOException e) {
-			System.err.println("An appendable must not failed here!");
 		}
-		return w;
+		out.append('"');
 	}
 
 }
@@ -0,0 +1,120 @@
+package songbook.song;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watches the songs folders for files changed outside of the server and updates the index.
+ * <p>
+ * Events are grouped until the folder is quiet for the debounce delay (or the batch is full),
+ * then changed songs are indexed with one commit. When events were lost (overflow), the
+ * whole folder is reconciled with the index.
+ */
+public class SongWatcher implements Closeable {
+
+    private final Logger logger = Logger.getLogger("Songbook");
+
+    private final SongDatabase songDb;
+
+    private final IndexDatabase indexDb;
+
+    private final WatchService watchService;
+
+    private final long debounceMillis;
+
+    private final int maxBatch;
+
+    private final Thread thread;
+
+    /**
+     * @param debounceMillis delay without event before a batch is indexed.
+     * @param maxBatch number of changed songs which triggers indexing at once.
+     */
+    public SongWatcher(Collection<Path> songDirs, SongDatabase songDb, IndexDatabase indexDb, long debounceMillis, int maxBatch) throws IOException {
+        this.songDb = songDb;
+        this.indexDb = indexDb;
+        this.debounceMillis = debounceMillis;
+        this.maxBatch = maxBatch;
+        this.watchService = FileSystems.getDefault().newWatchService();
+        for (Path songDir : songDirs) {
+            songDir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        }
+
+        thread = new Thread(this::watch, "watch-songs");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                Set<String> changed = new HashSet<>();
+                boolean overflow = collect(watchService.take(), changed);
+                // waits for the end of a burst, bounded to not delay indexing forever
+                long deadline = System.currentTimeMillis() + 10 * debounceMillis;
+                while (!overflow && changed.size() < maxBatch && System.currentTimeMillis() < deadline) {
+                    WatchKey key = watchService.poll(debounceMillis, TimeUnit.MILLISECONDS);
+                    if (key == null) break;
+                    overflow = collect(key, changed);
+                }
+                apply(changed, overflow);
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // watcher closed
+        }
+    }
+
+    /** Adds ids of changed songs, returns true when events were lost. */
+    private boolean collect(WatchKey key, Set<String> changed) {
+        boolean overflow = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                overflow = true;
+            } else {
+                String name = event.context().toString();
+                if (name.endsWith(FileSongStore.SONG_EXTENSION) && !name.startsWith(".")) {
+                    changed.add(name.substring(0, name.length() - FileSongStore.SONG_EXTENSION.length()));
+                }
+            }
+        }
+        key.reset();
+        return overflow;
+    }
+
+    private void apply(Set<String> changed, boolean overflow) {
+        try {
+            if (overflow) {
+                logger.warning("Songs folder events were lost, reconciling index");
+                songDb.clearCache();
+                indexDb.reconcile();
+            } else if (!changed.isEmpty()) {
+                songDb.songsChanged(changed);
+                IndexReport report = indexDb.update(changed);
+                if (report.getIndexed() > 0 || report.getRemoved() > 0 || report.getFailed() > 0) {
+                    logger.info("Songs changed in folder: " + report);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.SEVERE, "Can't index changed songs " + changed, e);
+        }
+    }
+
+    /** Stops watching, the thread isn't interrupted since it would close index files. */
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+}
@@ -0,0 +1,98 @@
+package songbook.song;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares rendered songs with the HTML of the regular expression rendering, kept in
+ * golden files (songbook/song/golden) for the bundled songs and for edge cases.
+ */
+public class SongRendererTest {
+
+    static final String CRLF = "Be Bop Lula\r\nartist: Gene Vincent\r\n\r\nChorus:\r\nC\r\nWell Be Bop A Lula she's my baby\r\n\r\nVerse:\r\nAm | F G7\r\nla la la\r\n\r\nChorus\r\n";
+
+    static final String CR = "Be Bop Lula\rartist: Gene Vincent\r\rChorus:\rC\rWell Be Bop A Lula she's my baby\r\rVerse:\rAm | F G7\rla la la\r\rChorus\r";
+
+    static final String TRAILING_NEWLINES = "Title\nartist: Someone\nalbum: Something\n\nVerse:\nC G/B Am\nsome words\n\n\n";
+
+    static final String RECALLS = "Title\nartist: Someone\n\nIntro:\nC G\n\nChorus:\nF C\nla la\n\nVerse:\nDm7 G\nsome words\nchorus\n  Bridge  \nINTRO\nchorus:\nC\n";
+
+    static final String HEADER_ONLY = "Title\nartist: Someone\nalbum: Something\nkey: C";
+
+    @Test
+    public void rendersBundledSongs() throws IOException {
+        int count = assertFolderRendering("data/songs", "data");
+        count += assertFolderRendering("deploy/songs", "deploy");
+        assertTrue("no bundled songs found", count > 0);
+    }
+
+    @Test
+    public void rendersCrlfLineEndings() throws IOException {
+        assertRendering(CRLF, "edge/crlf.html");
+    }
+
+    @Test
+    public void rendersCrLineEndings() throws IOException {
+        assertRendering(CR, "edge/cr.html");
+    }
+
+    @Test
+    public void rendersTrailingNewlines() throws IOException {
+        assertRendering(TRAILING_NEWLINES, "edge/trailing-newlines.html");
+    }
+
+    @Test
+    public void rendersRecallLines() throws IOException {
+        assertRendering(RECALLS, "edge/recalls.html");
+    }
+
+    @Test
+    public void rendersHeaderOnlySong() throws IOException {
+        assertRendering(HEADER_ONLY, "edge/header-only.html");
+    }
+
+    /** Renders each song of folder, golden files are named after songs in golden/goldenFolder. */
+    private static int assertFolderRendering(String folder, String goldenFolder) throws IOException {
+        int count = 0;
+        Path path = Paths.get(folder);
+        if (!Files.isDirectory(path)) return count;
+        try (DirectoryStream<Path> songs = Files.newDirectoryStream(path, "*" + SongDatabase.SONG_EXTENSION)) {
+            for (Path song : songs) {
+                String name = song.getFileName().toString();
+                String golden = goldenFolder + "/" + name.substring(0, name.length() - SongDatabase.SONG_EXTENSION.length()) + ".html";
+                assertRendering(new String(Files.readAllBytes(song), StandardCharsets.UTF_8), golden);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static void assertRendering(String song, String golden) throws IOException {
+        byte[] expected = readGolden(golden);
+        byte[] actual = SongRenderer.writeHtml(new StringBuilder(), song).toString().getBytes(StandardCharsets.UTF_8);
+        assertArrayEquals("rendering differs from " + golden, expected, actual);
+    }
+
+    private static byte[] readGolden(String golden) throws IOException {
+        try (InputStream in = SongRendererTest.class.getResourceAsStream("golden/" + golden)) {
+            assertNotNull("missing golden file " + golden, in);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8 * 1024];
+            int read;
+            while ((read = in.read(buffer)) >= 0) bytes.write(buffer, 0, read);
+            return bytes.toByteArray();
+        }
+    }
+}
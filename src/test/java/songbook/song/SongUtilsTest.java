@@ -0,0 +1,30 @@
+package songbook.song;
+
+import org.apache.lucene.document.Document;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class SongUtilsTest {
+
+    @Test
+    public void indexesHeaderProperties() throws IOException {
+        Document document = SongUtils.indexSong("Title\nartist: Someone\nalbum: Something\n\nC G\nla la\n");
+        assertEquals("Title", document.get("title"));
+        assertEquals("Someone", document.get("artist"));
+        assertEquals("Something", document.get("album"));
+        assertNotNull(IndexDatabase.FACETS_CONFIG.build(document));
+    }
+
+    @Test
+    public void indexesPropertyWithoutName() throws IOException {
+        Document document = SongUtils.indexSong("Title\nartist: Someone\n: no name\n\nC G\nla la\n");
+        assertEquals("no name", document.get(""));
+        assertEquals("Someone", document.get("artist"));
+        // building facets failed with an empty dimension
+        assertNotNull(IndexDatabase.FACETS_CONFIG.build(document));
+    }
+}